@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.google.android.apps.muzei.room.ArtworkDao;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stores downloaded artwork images by the SHA-256 hash of their contents, so that the same image
+ * published under different image URIs or tokens is only stored once. Each artwork row references
+ * its image through {@link com.google.android.apps.muzei.room.Artwork#contentHash}; an image is
+ * deleted once no row references it.
+ */
+public class ArtworkBlobStore {
+    private static final String TAG = "ArtworkBlobStore";
+    private static final String STAGING_SUFFIX = ".download";
+
+    private static final Object sLock = new Object();
+
+    private ArtworkBlobStore() {
+    }
+
+    /**
+     * Returns the lock held while images are committed or deleted. Artwork rows must be deleted,
+     * or inserted reusing an existing content hash, while holding it so that an image is never
+     * deleted while a row is about to reference it. Take it before, never inside, a database
+     * transaction, as database writes are made while holding it.
+     */
+    public static Object getLock() {
+        return sLock;
+    }
+
+    @Nullable
+    private static File getDirectory(Context context) {
+        File directory = new File(context.getFilesDir(), "artwork_blobs");
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        return directory;
+    }
+
+    /**
+     * Returns the file holding the image with the given hex encoded SHA-256 hash. The file may
+     * not exist.
+     */
+    @Nullable
+    public static File getFile(Context context, String contentHash) {
+        File directory = getDirectory(context);
+        return directory != null ? new File(directory, contentHash) : null;
+    }
+
+    /**
+     * Returns the file the image of the given artwork should be downloaded to before its hash is
+     * known and it is {@link #commit committed}.
+     */
+    @Nullable
+    public static File getStagingFile(Context context, long artworkId) {
+        File directory = getDirectory(context);
+        return directory != null ? new File(directory, artworkId + STAGING_SUFFIX) : null;
+    }
+
+    /**
+     * Returns the id of the artwork the given staging file, or a partial download or validator
+     * file kept next to it to resume the download, belongs to. Returns -1 for any other file.
+     */
+    private static long getStagingArtworkId(String fileName) {
+        int suffixIndex = fileName.indexOf(STAGING_SUFFIX);
+        if (suffixIndex <= 0) {
+            return -1;
+        }
+        int extraIndex = suffixIndex + STAGING_SUFFIX.length();
+        if (extraIndex < fileName.length() && fileName.charAt(extraIndex) != '.') {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(0, suffixIndex));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes the staging files of the given artwork, including any partial download and
+     * validator files kept to resume their download.
+     */
+    public static void deleteStagingFiles(Context context, Collection<Long> artworkIds) {
+        File directory = getDirectory(context);
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        Set<Long> artworkIdSet = new HashSet<>(artworkIds);
+        for (File file : files) {
+            if (artworkIdSet.contains(getStagingArtworkId(file.getName()))) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the staging files, including partial downloads, left behind by artwork that no
+     * longer exists.
+     */
+    @WorkerThread
+    public static void deleteStaleStagingFiles(Context context) {
+        File directory = getDirectory(context);
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        // Files written after the query may belong to artwork inserted after it, so keep those
+        long queryTime = System.currentTimeMillis();
+        Set<Long> artworkIds = new HashSet<>(
+                MuzeiDatabase.getInstance(context).artworkDao().getArtworkIds());
+        for (File file : files) {
+            long artworkId = getStagingArtworkId(file.getName());
+            if (artworkId != -1 && !artworkIds.contains(artworkId)
+                    && file.lastModified() < queryTime) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * Moves a downloaded image into the store and points the given artwork at it. If an identical
+     * image is already stored, the downloaded copy is discarded instead.
+     *
+     * @return whether the artwork now references a stored image
+     */
+    @WorkerThread
+    public static boolean commit(Context context, long artworkId, File stagingFile,
+            String contentHash) {
+        File file = getFile(context, contentHash);
+        if (file == null) {
+            return false;
+        }
+        ArtworkDao artworkDao = MuzeiDatabase.getInstance(context).artworkDao();
+        synchronized (sLock) {
+            if (artworkDao.getArtworkById(artworkId) == null) {
+                // The artwork was deleted while its image was downloading
+                stagingFile.delete();
+                return false;
+            }
+            if (file.exists()) {
+                stagingFile.delete();
+            } else if (!stagingFile.renameTo(file)) {
+                Log.w(TAG, "Unable to move " + stagingFile + " to " + file);
+                return false;
+            }
+            artworkDao.updateContentHash(artworkId, contentHash);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the stored images with the given hashes that no artwork other than
+     * {@code deletedArtworkIds} references.
+     */
+    @WorkerThread
+    public static void deleteUnreferenced(Context context, List<String> contentHashes,
+            List<Long> deletedArtworkIds) {
+        ArtworkDao artworkDao = MuzeiDatabase.getInstance(context).artworkDao();
+        synchronized (sLock) {
+            // Check the references again now that no image can be committed in between
+            List<String> referencedHashes = artworkDao.getReferencedContentHashes(
+                    contentHashes, deletedArtworkIds);
+            if (referencedHashes == null) {
+                return;
+            }
+            for (String contentHash : contentHashes) {
+                if (referencedHashes.contains(contentHash)) {
+                    continue;
+                }
+                File file = getFile(context, contentHash);
+                if (file != null && file.exists()) {
+                    deleteFile(file);
+                }
+            }
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Names the cached files of artwork downloaded before the
+ * {@link ArtworkBlobStore content addressed store}, kept apart from {@link MuzeiProvider} so that
+ * it can be benchmarked without a database.
+ */
+final class ArtworkCacheFileNames {
+    private ArtworkCacheFileNames() {
+    }
+
+    /**
+     * Returns a unique file name for the given image URI or, if there is none, token.
+     */
+    static String getFileName(@Nullable Uri imageUri, @Nullable String token) {
+        StringBuilder filename = new StringBuilder();
+        if (imageUri != null) {
+            filename.append(imageUri.getScheme()).append("_")
+                    .append(imageUri.getHost()).append("_");
+            String encodedPath = imageUri.getEncodedPath();
+            if (!TextUtils.isEmpty(encodedPath)) {
+                int length = encodedPath.length();
+                if (length > 60) {
+                    encodedPath = encodedPath.substring(length - 60);
+                }
+                encodedPath = encodedPath.replace('/', '_');
+                filename.append(encodedPath).append("_");
+            }
+        }
+        // Use the imageUri if available, otherwise use the token
+        String unique = imageUri != null ? imageUri.toString() : token;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(unique.getBytes("UTF-8"));
+            byte[] digest = md.digest();
+            for (byte b : digest) {
+                if ((0xff & b) < 0x10) {
+                    filename.append("0").append(Integer.toHexString((0xFF & b)));
+                } else {
+                    filename.append(Integer.toHexString(0xFF & b));
+                }
+            }
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            filename.append(unique.hashCode());
+        }
+        return filename.toString();
+    }
+}
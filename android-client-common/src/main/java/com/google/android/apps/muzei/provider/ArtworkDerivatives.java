@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteConstraintException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkDerivative;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pre-renders smaller copies of each downloaded artwork so that consumers such as the widget,
+ * notifications, Android Wear and document thumbnails don't need to decode the full image. They
+ * are served by {@link MuzeiProvider#openFile} when a {@link MuzeiProvider#QUERY_PARAMETER_SIZE}
+ * is given. Derivatives are plain downscales: EXIF rotation is not applied, so use the artwork's
+ * stored rotation.
+ */
+public class ArtworkDerivatives {
+    private static final String TAG = "ArtworkDerivatives";
+
+    /**
+     * The size, as the length of the shorter side in pixels, and encoding of a derivative.
+     */
+    public static class Spec {
+        final int size;
+        final Bitmap.CompressFormat format;
+        final int quality;
+
+        public Spec(int size, Bitmap.CompressFormat format, int quality) {
+            this.size = size;
+            this.format = format;
+            this.quality = quality;
+        }
+    }
+
+    /**
+     * Covers notification large icons and document thumbnails, the 320px Android Wear image and
+     * home screen widgets.
+     */
+    public static final Spec[] DEFAULT_SPECS = {
+            new Spec(160, Bitmap.CompressFormat.WEBP, 90),
+            new Spec(320, Bitmap.CompressFormat.WEBP, 90),
+            new Spec(720, Bitmap.CompressFormat.JPEG, 90)
+    };
+
+    private ArtworkDerivatives() {
+    }
+
+    static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), "artwork_derivatives");
+    }
+
+    /**
+     * Generates the {@link #DEFAULT_SPECS} derivatives of the given artwork.
+     */
+    @WorkerThread
+    public static void generate(Context context, Artwork artwork) {
+        generate(context, artwork, DEFAULT_SPECS);
+    }
+
+    /**
+     * Generates the given derivatives of the given artwork from a single decode of its image and
+     * registers them in the database. Sizes at least as large as the image are skipped. The
+     * artwork's metadata must have been probed.
+     */
+    @WorkerThread
+    public static void generate(Context context, Artwork artwork, Spec... specs) {
+        if (!artwork.hasMetadata()) {
+            return;
+        }
+        int shortestLength = Math.min(artwork.width, artwork.height);
+        int largestSize = 0;
+        for (Spec spec : specs) {
+            if (spec.size < shortestLength) {
+                largestSize = Math.max(largestSize, spec.size);
+            }
+        }
+        if (largestSize == 0) {
+            // The image is already small enough for every consumer
+            return;
+        }
+        File directory = getDirectory(context);
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+
+        // Decode once, at the largest sample size that still covers the largest derivative
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (shortestLength / (options.inSampleSize << 1) >= largestSize) {
+            options.inSampleSize <<= 1;
+        }
+        Bitmap source;
+        try (InputStream in = context.getContentResolver().openInputStream(
+                artwork.getContentUri())) {
+            source = BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException|SecurityException e) {
+            Log.w(TAG, "Unable to decode artwork " + artwork.id, e);
+            return;
+        }
+        if (source == null) {
+            return;
+        }
+
+        int sourceShortestLength = Math.min(source.getWidth(), source.getHeight());
+        for (Spec spec : specs) {
+            if (spec.size >= shortestLength) {
+                continue;
+            }
+            float scale = (float) spec.size / sourceShortestLength;
+            int width = Math.max(1, Math.round(source.getWidth() * scale));
+            int height = Math.max(1, Math.round(source.getHeight() * scale));
+            Bitmap scaled = Bitmap.createScaledBitmap(source, width, height, true);
+            ArtworkDerivative derivative = new ArtworkDerivative();
+            derivative.artworkId = artwork.id;
+            derivative.size = spec.size;
+            derivative.width = width;
+            derivative.height = height;
+            derivative.mimeType = getMimeType(spec.format);
+            derivative.fileName = artwork.id + "_" + spec.size + "." + getExtension(spec.format);
+            File file = new File(directory, derivative.fileName);
+            if (write(scaled, spec, file)) {
+                insert(context, derivative, file);
+            }
+            if (scaled != source) {
+                scaled.recycle();
+            }
+        }
+        source.recycle();
+    }
+
+    /**
+     * Registers the given derivative, or deletes its file if the artwork has been deleted while
+     * the derivative was being generated. Artwork rows are deleted along with their derivatives'
+     * files while holding {@link ArtworkBlobStore#getLock()}, so the check is made under it.
+     */
+    private static void insert(Context context, ArtworkDerivative derivative, File file) {
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        synchronized (ArtworkBlobStore.getLock()) {
+            try {
+                if (database.artworkDao().getArtworkById(derivative.artworkId) != null) {
+                    database.artworkDerivativeDao().insert(derivative);
+                    return;
+                }
+            } catch (SQLiteConstraintException e) {
+                // The artwork was deleted along with its source
+                Log.w(TAG, "Artwork " + derivative.artworkId + " was deleted", e);
+            }
+        }
+        file.delete();
+    }
+
+    private static boolean write(Bitmap bitmap, Spec spec, File file) {
+        // Write to a temporary file first so that readers never see a partial file
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            bitmap.compress(spec.format, spec.quality, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing " + file.getName(), e);
+            tempFile.delete();
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the file of the smallest derivative of the given artwork whose shorter side is at
+     * least {@code size} pixels, or null if there is none.
+     */
+    @Nullable
+    static File find(Context context, long artworkId, int size) {
+        ArtworkDerivative derivative = MuzeiDatabase.getInstance(context).artworkDerivativeDao()
+                .getDerivativeBlocking(artworkId, size);
+        if (derivative == null) {
+            return null;
+        }
+        File file = new File(getDirectory(context), derivative.fileName);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Deletes the derivatives of the given artwork.
+     */
+    public static void delete(Context context, long artworkId) {
+        MuzeiDatabase.getInstance(context).artworkDerivativeDao().deleteForArtwork(artworkId);
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = artworkId + "_";
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String getMimeType(Bitmap.CompressFormat format) {
+        switch (format) {
+            case JPEG: return "image/jpeg";
+            case PNG: return "image/png";
+            default: return "image/webp";
+        }
+    }
+
+    private static String getExtension(Bitmap.CompressFormat format) {
+        switch (format) {
+            case JPEG: return "jpg";
+            case PNG: return "png";
+            default: return "webp";
+        }
+    }
+}
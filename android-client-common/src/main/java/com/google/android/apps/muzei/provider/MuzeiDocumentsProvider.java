@@ -29,7 +29,6 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
@@ -48,6 +47,7 @@ import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.ArtworkDao;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
+import com.google.android.apps.muzei.util.ArtworkBitmapCache;
 
 import net.nurik.roman.muzei.androidclientcommon.BuildConfig;
 import net.nurik.roman.muzei.androidclientcommon.R;
@@ -455,8 +455,8 @@ public class MuzeiDocumentsProvider extends DocumentsProvider {
     }
 
     private AssetFileDescriptor openArtworkThumbnail(final Uri artworkUri, final Point sizeHint, final CancellationSignal signal) throws FileNotFoundException {
-        ContentResolver contentResolver = getContext() != null ? getContext().getContentResolver() : null;
-        if (contentResolver == null) {
+        Context context = getContext();
+        if (context == null) {
             return null;
         }
         long artworkId = ContentUris.parseId(artworkUri);
@@ -466,34 +466,22 @@ public class MuzeiDocumentsProvider extends DocumentsProvider {
             return new AssetFileDescriptor(ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
                     AssetFileDescriptor.UNKNOWN_LENGTH);
         }
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(contentResolver.openInputStream(artworkUri), null, options);
-        if (signal.isCanceled()) {
-            // Canceled, so we'll stop here to save us the effort of actually decoding the image
+        if (signal != null && signal.isCanceled()) {
             return null;
         }
-        final int targetHeight = 2 * sizeHint.y;
-        final int targetWidth = 2 * sizeHint.x;
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        options.inSampleSize = 1;
-        if (height > targetHeight || width > targetWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / options.inSampleSize) > targetHeight
-                    || (halfWidth / options.inSampleSize) > targetWidth) {
-                options.inSampleSize *= 2;
-            }
+        Artwork artwork = MuzeiDatabase.getInstance(context).artworkDao().getArtworkById(artworkId);
+        if (artwork == null) {
+            return null;
+        }
+        Bitmap bitmap = ArtworkBitmapCache.getInstance(context).get(artwork,
+                2 * sizeHint.x, 2 * sizeHint.y, ArtworkBitmapCache.TRANSFORM_NONE);
+        if (bitmap == null) {
+            return null;
         }
-        options.inJustDecodeBounds = false;
-        Bitmap bitmap = BitmapFactory.decodeStream(contentResolver.openInputStream(artworkUri), null, options);
         // Write out the thumbnail to a temporary file
         if (tempFile == null) {
             try {
-                tempFile = File.createTempFile("thumbnail", null, getContext().getCacheDir());
+                tempFile = File.createTempFile("thumbnail", null, context.getCacheDir());
             } catch (IOException e) {
                 Log.e(TAG, "Error writing thumbnail", e);
                 return null;
@@ -29,43 +29,65 @@ import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.support.v4.os.UserManagerCompat;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
 import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkDao;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
+import com.google.android.apps.muzei.util.IoExecutor;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Provides access to a the most recent artwork
  */
 public class MuzeiProvider extends ContentProvider {
     private static final String TAG = "MuzeiProvider";
+    /**
+     * Optional query parameter when opening artwork for reading: the minimum length in pixels of
+     * the image's shorter side. A pre-rendered {@link ArtworkDerivatives derivative} is returned
+     * when one at least that large exists.
+     */
+    public static final String QUERY_PARAMETER_SIZE = "size";
     /**
      * Maximum number of previous artwork to keep per source, with the exception of artwork that
      * has a persisted permission.
      * @see #cleanupCachedFiles
      */
     private static final int MAX_CACHE_SIZE = 10;
+    /**
+     * Maximum total size in bytes of the cached images kept per source, other than the most recent
+     * one and artwork that has a persisted permission.
+     * @see #cleanupCachedFiles
+     */
+    private static final long MAX_CACHE_BYTES = 50 * 1024 * 1024;
+    /**
+     * Delay before a requested cleanup runs, so that a burst of artwork changes, such as
+     * repeatedly skipping to the next artwork, only results in a single cleanup.
+     */
+    private static final long CLEANUP_DELAY_MILLIS = 1000;
+    private static final Handler sCleanupHandler = new Handler(Looper.getMainLooper());
+    private static final AtomicBoolean sCleanupScheduled = new AtomicBoolean();
     /**
      * The incoming URI matches the ARTWORK URI pattern
      */
@@ -362,6 +384,7 @@ public class MuzeiProvider extends ContentProvider {
         }
         final boolean isWriteOperation = mode.contains("w");
         final File file;
+        long artworkId = -1;
         if (!UserManagerCompat.isUserUnlocked(context)) {
             if (isWriteOperation) {
                 Log.w(TAG, "Wallpaper is read only until the user is unlocked");
@@ -385,16 +408,25 @@ public class MuzeiProvider extends ContentProvider {
                 File possibleFile = getCacheFileForArtworkUri(context, artwork.id);
                 if (possibleFile != null && possibleFile.exists()) {
                     foundFile = possibleFile;
+                    artworkId = artwork.id;
                     break;
                 }
             }
             file = foundFile;
         } else {
-            file = getCacheFileForArtworkUri(context, ContentUris.parseId(uri));
+            artworkId = ContentUris.parseId(uri);
+            file = getCacheFileForArtworkUri(context, artworkId);
         }
         if (file == null) {
             throw new FileNotFoundException("Could not create artwork file for " + uri + " for mode " + mode);
         }
+        if (!isWriteOperation && artworkId != -1) {
+            File derivativeFile = getDerivativeFile(context, uri, artworkId);
+            if (derivativeFile != null) {
+                return ParcelFileDescriptor.open(derivativeFile,
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+        }
         if (file.exists() && file.length() > 0 && isWriteOperation) {
             if (!context.getPackageName().equals(getCallingPackage())) {
                 Log.w(TAG, "Writing to an existing artwork file is not allowed: insert a new row");
@@ -416,11 +448,7 @@ public class MuzeiProvider extends ContentProvider {
                                     }
                                 } else {
                                     // The file was successfully written, notify listeners of the new artwork
-                                    context.getContentResolver()
-                                            .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null);
-                                    context.sendBroadcast(
-                                            new Intent(MuzeiContract.Artwork.ACTION_ARTWORK_CHANGED));
-                                    cleanupCachedFiles(context);
+                                    onArtworkFileWritten(context);
                                 }
                             }
 
@@ -432,6 +460,32 @@ public class MuzeiProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Notifies listeners that a new artwork file is ready, for artwork files written directly
+     * to {@link #getCacheFileForArtworkUri} rather than through {@link #openFile}.
+     */
+    public static void onArtworkFileWritten(Context context) {
+        context.getContentResolver()
+                .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null);
+        context.sendBroadcast(
+                new Intent(MuzeiContract.Artwork.ACTION_ARTWORK_CHANGED));
+        cleanupCachedFiles(context);
+    }
+
+    @Nullable
+    private static File getDerivativeFile(Context context, Uri uri, long artworkId) {
+        String size = uri.getQueryParameter(QUERY_PARAMETER_SIZE);
+        if (TextUtils.isEmpty(size)) {
+            return null;
+        }
+        try {
+            return ArtworkDerivatives.find(context, artworkId, Integer.parseInt(size));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid size " + size + " for " + uri);
+            return null;
+        }
+    }
+
     @Nullable
     public static File getCacheFileForArtworkUri(Context context, long artworkId) {
         File directory = new File(context.getFilesDir(), "artwork");
@@ -442,108 +496,105 @@ public class MuzeiProvider extends ContentProvider {
         if (artwork == null) {
             return null;
         }
+        if (artwork.contentHash != null) {
+            return ArtworkBlobStore.getFile(context, artwork.contentHash);
+        }
         if (artwork.imageUri == null && TextUtils.isEmpty(artwork.token)) {
             return new File(directory, Long.toString(artwork.id));
         }
         // Otherwise, create a unique filename based on the imageUri and token
-        StringBuilder filename = new StringBuilder();
-        if (artwork.imageUri != null) {
-            filename.append(artwork.imageUri.getScheme()).append("_")
-                    .append(artwork.imageUri.getHost()).append("_");
-            String encodedPath = artwork.imageUri.getEncodedPath();
-            if (!TextUtils.isEmpty(encodedPath)) {
-                int length = encodedPath.length();
-                if (length > 60) {
-                    encodedPath = encodedPath.substring(length - 60);
-                }
-                encodedPath = encodedPath.replace('/', '_');
-                filename.append(encodedPath).append("_");
-            }
-        }
-        // Use the imageUri if available, otherwise use the token
-        String unique = artwork.imageUri != null ? artwork.imageUri.toString() : artwork.token;
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(unique.getBytes("UTF-8"));
-            byte[] digest = md.digest();
-            for (byte b : digest) {
-                if ((0xff & b) < 0x10) {
-                    filename.append("0").append(Integer.toHexString((0xFF & b)));
-                } else {
-                    filename.append(Integer.toHexString(0xFF & b));
-                }
-            }
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-            filename.append(unique.hashCode());
-        }
-        return new File(directory, filename.toString());
+        return new File(directory,
+                ArtworkCacheFileNames.getFileName(artwork.imageUri, artwork.token));
     }
 
     /**
-     * Limit the number of cached files per art source to {@link #MAX_CACHE_SIZE}.
+     * Limit the cached files per art source to {@link #MAX_CACHE_SIZE} images and
+     * {@link #MAX_CACHE_BYTES}. Calls made while a cleanup is already pending are coalesced
+     * into that cleanup.
      * @see #MAX_CACHE_SIZE
      */
-    public static void cleanupCachedFiles(final Context context) {
-        new Thread() {
+    public static void cleanupCachedFiles(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        if (!sCleanupScheduled.compareAndSet(false, true)) {
+            // The pending cleanup will cover this change as well
+            return;
+        }
+        sCleanupHandler.postDelayed(new Runnable() {
             @Override
             public void run() {
-                final MuzeiDatabase database = MuzeiDatabase.getInstance(context);
-                final List<Source> sources = database.sourceDao().getSourcesBlocking();
-                if (sources == null) {
-                    return;
-                }
-                // Access to certain artwork can be persisted through MuzeiDocumentsProvider
-                // We never want to delete these artwork as that would break other apps
-                final Set<Uri> persistedUris = MuzeiDocumentsProvider.getPersistedArtworkUris(context);
-                // Loop through each source, cleaning up old artwork
-                for (Source source : sources) {
-                    final ComponentName componentName = source.componentName;
-                    // Now use that ComponentName to look through the past artwork from that source
-                    final List<Artwork> artworkList = database.artworkDao()
-                            .getArtworkForSourceIdBlocking(source.id);
-                    if (artworkList == null || artworkList.isEmpty()) {
-                        continue;
-                    }
-                    List<Long> artworkIdsToKeep = new ArrayList<>();
-                    List<String> artworkToKeep = new ArrayList<>();
-                    // First find all of the persisted artwork from this source and mark them as artwork to keep
-                    for (Artwork artwork : artworkList) {
-                        Uri uri = artwork.getContentUri();
-                        String unique = artwork.imageUri != null ? artwork.imageUri.toString() : artwork.token;
-                        if (persistedUris.contains(uri)) {
-                            // Always keep artwork that is persisted
-                            artworkIdsToKeep.add(artwork.id);
-                            artworkToKeep.add(unique);
-                        }
+                // Only one cleanup runs at a time, any others wait for it to finish
+                IoExecutor.getInstance().execute("cleanup_cached_files", new Runnable() {
+                    @Override
+                    public void run() {
+                        // Any change from now on needs another cleanup
+                        sCleanupScheduled.set(false);
+                        cleanupCachedFilesBlocking(applicationContext);
                     }
-                    // Now go through the artwork from this source and find the most recent artwork
-                    // and mark them as artwork to keep
-                    int count = 0;
-                    for (Artwork artwork : artworkList) {
-                        String unique = artwork.imageUri != null ? artwork.imageUri.toString() : artwork.token;
-                        if (artworkToKeep.contains(unique)) {
-                            // This ensures we are double counting the same artwork in our count
-                            artworkIdsToKeep.add(artwork.id);
+                });
+            }
+        }, CLEANUP_DELAY_MILLIS);
+    }
+
+    @WorkerThread
+    private static void cleanupCachedFilesBlocking(Context context) {
+        final MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        final List<Source> sources = database.sourceDao().getSourcesBlocking();
+        if (sources == null) {
+            return;
+        }
+        // Access to certain artwork can be persisted through MuzeiDocumentsProvider
+        // We never want to delete these artwork as that would break other apps
+        List<Long> persistedIds = new ArrayList<>();
+        for (Uri persistedUri : MuzeiDocumentsProvider.getPersistedArtworkUris(context)) {
+            try {
+                persistedIds.add(ContentUris.parseId(persistedUri));
+            } catch (NumberFormatException|UnsupportedOperationException ignored) {
+                // Not an artwork URI
+            }
+        }
+        final ArtworkDao artworkDao = database.artworkDao();
+        for (Source source : sources) {
+            final ComponentName componentName = source.componentName;
+            try {
+                // First keep all of the persisted artwork from this source,
+                // along with any other artwork using the same image
+                Set<Long> artworkIdsToKeep = new HashSet<>(
+                        artworkDao.getArtworkIdsSharingImage(componentName, persistedIds));
+                // Then keep the most recent images, newest first, until the size budget is used
+                List<Long> newestArtworkIds = artworkDao.getArtworkIdsForNewestImages(
+                        componentName, persistedIds, MAX_CACHE_SIZE);
+                if (artworkIdsToKeep.isEmpty() && newestArtworkIds.isEmpty()) {
+                    continue;
+                }
+                Set<String> keptFiles = new HashSet<>();
+                long keptBytes = 0;
+                boolean overBudget = false;
+                for (long artworkId : newestArtworkIds) {
+                    File file = getCacheFileForArtworkUri(context, artworkId);
+                    if (file != null && !keptFiles.contains(file.getPath())) {
+                        long length = file.length();
+                        // Always keep the newest image, even if it is over budget by itself
+                        if (overBudget || (!keptFiles.isEmpty()
+                                && keptBytes + length > MAX_CACHE_BYTES)) {
+                            overBudget = true;
                             continue;
                         }
-                        if (count++ < MAX_CACHE_SIZE) {
-                            // Keep artwork below the MAX_CACHE_SIZE
-                            artworkIdsToKeep.add(artwork.id);
-                            artworkToKeep.add(unique);
-                        }
-                    }
-                    // Now delete all artwork not in the keep list
-                    try {
-                        database.artworkDao().deleteNonMatching(context,
-                                componentName, artworkIdsToKeep);
-                    } catch (IllegalStateException e) {
-                        Log.e(TAG, "Unable to read all artwork for " + componentName +
-                                ", deleting all in an attempt to get back to a good state", e);
-                        database.artworkDao().deleteAll(context, componentName);
+                        keptFiles.add(file.getPath());
+                        keptBytes += length;
                     }
+                    artworkIdsToKeep.add(artworkId);
                 }
+                // Now delete all artwork not in the keep list
+                artworkDao.deleteNonMatching(context, componentName,
+                        new ArrayList<>(artworkIdsToKeep));
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Unable to read all artwork for " + componentName +
+                        ", deleting all in an attempt to get back to a good state", e);
+                artworkDao.deleteAll(context, componentName);
             }
-        }.start();
+        }
+        // Clean up downloads abandoned by artwork that has since been deleted
+        ArtworkBlobStore.deleteStaleStagingFiles(context);
     }
 
     @Override
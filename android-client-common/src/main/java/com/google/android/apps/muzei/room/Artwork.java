@@ -41,7 +41,12 @@ import java.util.Date;
 /**
  * Artwork's representation in Room
  */
-@Entity(indices = @Index(value = "sourceComponentName"),
+@Entity(indices = {
+        @Index(value = "sourceComponentName"),
+        @Index(value = "date_added"),
+        @Index(value = "imageUri"),
+        @Index(value = "token"),
+        @Index(value = "content_hash")},
         foreignKeys = @ForeignKey(
                 entity = Source.class,
                 parentColumns = "component_name",
@@ -78,6 +83,43 @@ public class Artwork {
     @TypeConverters(IntentTypeConverter.class)
     public Intent viewIntent;
 
+    /**
+     * Width of the downloaded image in pixels, before {@link #rotation} is applied, or 0 if the
+     * image hasn't been probed yet.
+     *
+     * @see com.google.android.apps.muzei.util.ImageMetadata
+     */
+    public int width;
+
+    /**
+     * Height of the downloaded image in pixels, before {@link #rotation} is applied, or 0 if the
+     * image hasn't been probed yet.
+     */
+    public int height;
+
+    /**
+     * Clockwise rotation in degrees needed to show the downloaded image right side up, from its
+     * EXIF orientation.
+     */
+    public int rotation;
+
+    @ColumnInfo(name = "mime_type")
+    public String mimeType;
+
+    /**
+     * Hex encoded SHA-256 hash of the downloaded image, or null if it hasn't been downloaded
+     * into the {@link com.google.android.apps.muzei.provider.ArtworkBlobStore} yet.
+     */
+    @ColumnInfo(name = "content_hash")
+    public String contentHash;
+
+    /**
+     * Returns whether the downloaded image's metadata is known.
+     */
+    public boolean hasMetadata() {
+        return width > 0 && height > 0;
+    }
+
     @NonNull
     public Uri getContentUri() {
         return getContentUri(id);
@@ -17,6 +17,8 @@
 package com.google.android.apps.muzei.room;
 
 import android.arch.lifecycle.LiveData;
+import android.arch.lifecycle.MediatorLiveData;
+import android.arch.lifecycle.Observer;
 import android.arch.persistence.room.Dao;
 import android.arch.persistence.room.Delete;
 import android.arch.persistence.room.Insert;
@@ -24,14 +26,16 @@ import android.arch.persistence.room.Query;
 import android.arch.persistence.room.TypeConverters;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.google.android.apps.muzei.api.MuzeiContract;
+import com.google.android.apps.muzei.provider.ArtworkBlobStore;
+import com.google.android.apps.muzei.provider.ArtworkDerivatives;
 import com.google.android.apps.muzei.provider.MuzeiProvider;
 import com.google.android.apps.muzei.room.converter.ComponentNameTypeConverter;
 import com.google.android.apps.muzei.room.converter.UriTypeConverter;
+import com.google.android.apps.muzei.util.IoExecutor;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -43,22 +47,56 @@ import java.util.List;
  */
 @Dao
 public abstract class ArtworkDao {
+    private final Object mCurrentArtworkLock = new Object();
+    private Artwork mCurrentArtwork;
+    private boolean mCurrentArtworkLoaded;
+
     @Insert
-    abstract long insertInternal(Artwork artwork);
+    abstract long[] insertAllInternal(List<Artwork> artworkList);
 
     public long insert(Context context, Artwork artwork) {
-        long id = insertInternal(artwork);
-        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(context, id);
+        return insertAll(context, Collections.singletonList(artwork))[0];
+    }
+
+    /**
+     * Inserts all of the given artwork in a single transaction. Observers are notified and
+     * cached files cleaned up once for the whole batch rather than once per artwork.
+     *
+     * @return the ids of the inserted artwork, in the same order
+     */
+    public long[] insertAll(Context context, List<Artwork> artworkList) {
+        if (artworkList.isEmpty()) {
+            return new long[0];
+        }
+        int newest = 0;
+        long[] ids;
+        // Hold the lock until the rows are inserted so that the images they reuse aren't deleted
+        synchronized (ArtworkBlobStore.getLock()) {
+            for (int i = 0; i < artworkList.size(); i++) {
+                Artwork artwork = artworkList.get(i);
+                if (artwork.contentHash == null) {
+                    // Reuse the image already downloaded for the same image URI or token
+                    if (artwork.imageUri != null) {
+                        artwork.contentHash = getContentHashByImageUri(artwork.imageUri);
+                    } else if (!TextUtils.isEmpty(artwork.token)) {
+                        artwork.contentHash = getContentHashByToken(artwork.token);
+                    }
+                }
+                if (artwork.dateAdded.after(artworkList.get(newest).dateAdded)) {
+                    newest = i;
+                }
+            }
+            ids = insertAllInternal(artworkList);
+        }
+        invalidateCurrentArtwork();
+        // Only the newest artwork becomes the current artwork
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(context, ids[newest]);
         if (artworkFile != null && artworkFile.exists()) {
             // The image already exists so we'll notify observers to say the new artwork is ready
             // Otherwise, this will be called when the file is written with MuzeiProvider.openFile()
-            context.getContentResolver()
-                    .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null);
-            context.sendBroadcast(
-                    new Intent(MuzeiContract.Artwork.ACTION_ARTWORK_CHANGED));
-            MuzeiProvider.cleanupCachedFiles(context);
+            MuzeiProvider.onArtworkFileWritten(context);
         }
-        return id;
+        return ids;
     }
 
     @Query("SELECT * FROM artwork ORDER BY date_added DESC")
@@ -72,15 +110,92 @@ public abstract class ArtworkDao {
             "ORDER BY date_added DESC")
     public abstract List<Artwork> getArtworkForSourceIdBlocking(long sourceId);
 
-    @Query("SELECT * FROM artwork ORDER BY date_added DESC")
-    public abstract LiveData<Artwork> getCurrentArtwork();
+    @Query("SELECT * FROM artwork ORDER BY date_added DESC LIMIT 1")
+    abstract LiveData<Artwork> getCurrentArtworkInternal();
 
-    @Query("SELECT * FROM artwork ORDER BY date_added DESC")
-    public abstract Artwork getCurrentArtworkBlocking();
+    /**
+     * Returns the current artwork. Unlike a plain Room query, observers are only notified when a
+     * different artwork becomes the current one, not on every change to the artwork table.
+     */
+    public LiveData<Artwork> getCurrentArtwork() {
+        final MediatorLiveData<Artwork> currentArtwork = new MediatorLiveData<>();
+        currentArtwork.addSource(getCurrentArtworkInternal(), new Observer<Artwork>() {
+            private boolean mHasValue;
+
+            @Override
+            public void onChanged(@Nullable final Artwork artwork) {
+                Artwork previous = currentArtwork.getValue();
+                boolean sameArtwork = previous == null
+                        ? artwork == null
+                        : artwork != null && previous.id == artwork.id;
+                if (mHasValue && sameArtwork) {
+                    return;
+                }
+                mHasValue = true;
+                currentArtwork.setValue(artwork);
+            }
+        });
+        return currentArtwork;
+    }
+
+    @Query("SELECT * FROM artwork ORDER BY date_added DESC LIMIT 1")
+    abstract Artwork getCurrentArtworkInternalBlocking();
+
+    /**
+     * Returns the current artwork from an in memory snapshot, only querying the database again
+     * after the artwork table changed. The returned Artwork is shared between callers so it
+     * should only be updated to mirror changes written to the database.
+     */
+    public Artwork getCurrentArtworkBlocking() {
+        synchronized (mCurrentArtworkLock) {
+            if (!mCurrentArtworkLoaded) {
+                mCurrentArtwork = getCurrentArtworkInternalBlocking();
+                mCurrentArtworkLoaded = true;
+            }
+            return mCurrentArtwork;
+        }
+    }
+
+    /**
+     * Drops the snapshot returned by {@link #getCurrentArtworkBlocking()}. Called synchronously
+     * after each insert or delete, and by {@link MuzeiDatabase} for any other change to the
+     * artwork table, such as rows deleted when their source is deleted.
+     */
+    void invalidateCurrentArtwork() {
+        synchronized (mCurrentArtworkLock) {
+            mCurrentArtwork = null;
+            mCurrentArtworkLoaded = false;
+        }
+    }
 
     @Query("SELECT * FROM artwork WHERE _id=:id")
     public abstract Artwork getArtworkById(long id);
 
+    @Query("SELECT _id FROM artwork")
+    public abstract List<Long> getArtworkIds();
+
+    @Query("UPDATE artwork SET width=:width, height=:height, rotation=:rotation, "
+            + "mime_type=:mimeType WHERE _id=:id")
+    public abstract void updateMetadata(long id, int width, int height, int rotation,
+            String mimeType);
+
+    @Query("UPDATE artwork SET content_hash=:contentHash WHERE _id=:id")
+    public abstract void updateContentHash(long id, String contentHash);
+
+    @TypeConverters(UriTypeConverter.class)
+    @Query("SELECT content_hash FROM artwork WHERE imageUri=:imageUri "
+            + "AND content_hash IS NOT NULL LIMIT 1")
+    abstract String getContentHashByImageUri(Uri imageUri);
+
+    @Query("SELECT content_hash FROM artwork WHERE token=:token "
+            + "AND content_hash IS NOT NULL LIMIT 1")
+    abstract String getContentHashByToken(String token);
+
+    @Query("SELECT DISTINCT content_hash FROM artwork WHERE content_hash IN (:contentHashes) "
+            + "AND _id NOT IN (:deleteList)")
+    public abstract List<String> getReferencedContentHashes(List<String> contentHashes,
+            List<Long> deleteList);
+
     @Query("SELECT * FROM artwork WHERE title LIKE :query OR byline LIKE :query OR attribution LIKE :query")
     public abstract List<Artwork> searchArtworkBlocking(String query);
 
@@ -92,15 +207,18 @@ public abstract class ArtworkDao {
             "FROM artwork, sources " +
             "WHERE artwork.sourceComponentName = " +
             "sources.component_name " +
-            "ORDER BY date_added DESC")
+            "ORDER BY date_added DESC LIMIT 1")
     public abstract ArtworkSource getCurrentArtworkWithSourceBlocking();
 
     @Delete
     abstract void deleteInternal(Artwork artwork);
 
     public void delete(Context context, Artwork artwork) {
-        deleteImages(context, Collections.singletonList(artwork));
-        deleteInternal(artwork);
+        synchronized (ArtworkBlobStore.getLock()) {
+            deleteImages(context, Collections.singletonList(artwork));
+            deleteInternal(artwork);
+        }
+        invalidateCurrentArtwork();
     }
 
     @TypeConverters(ComponentNameTypeConverter.class)
@@ -112,15 +230,48 @@ public abstract class ArtworkDao {
     abstract List<Artwork> getArtworkForSource(ComponentName sourceComponentName);
 
     public void deleteAll(final Context context, final ComponentName sourceComponentName) {
-        new Thread() {
+        IoExecutor.getInstance().execute(getDeleteKey(sourceComponentName), new Runnable() {
             @Override
             public void run() {
-                deleteImages(context, getArtworkForSource(sourceComponentName));
-                deleteAllInternal(sourceComponentName);
+                synchronized (ArtworkBlobStore.getLock()) {
+                    deleteImages(context, getArtworkForSource(sourceComponentName));
+                    deleteAllInternal(sourceComponentName);
+                }
+                invalidateCurrentArtwork();
             }
-        }.start();
+        });
     }
 
+    /**
+     * Returns the ids of the artwork from the given source that share an image with any of the
+     * given artwork, including those artwork themselves.
+     */
+    @TypeConverters(ComponentNameTypeConverter.class)
+    @Query("SELECT _id FROM artwork WHERE sourceComponentName = :sourceComponentName " +
+            "AND COALESCE(imageUri, token, _id) IN " +
+            "(SELECT COALESCE(imageUri, token, _id) FROM artwork WHERE _id IN (:ids))")
+    public abstract List<Long> getArtworkIdsSharingImage(ComponentName sourceComponentName,
+            List<Long> ids);
+
+    /**
+     * Returns the ids of the artwork from the given source using one of its {@code limit} most
+     * recently added images, newest first. Images shared with any of {@code excludedIds} are
+     * skipped and don't count towards the limit. Artwork without an image URI or token is
+     * considered to have an image of its own.
+     */
+    @TypeConverters(ComponentNameTypeConverter.class)
+    @Query("SELECT _id FROM artwork WHERE sourceComponentName = :sourceComponentName " +
+            "AND COALESCE(imageUri, token, _id) IN " +
+            "(SELECT COALESCE(imageUri, token, _id) FROM artwork " +
+            "WHERE sourceComponentName = :sourceComponentName " +
+            "AND COALESCE(imageUri, token, _id) NOT IN " +
+            "(SELECT COALESCE(imageUri, token, _id) FROM artwork WHERE _id IN (:excludedIds)) " +
+            "GROUP BY COALESCE(imageUri, token, _id) " +
+            "ORDER BY MAX(date_added) DESC LIMIT :limit) " +
+            "ORDER BY date_added DESC")
+    public abstract List<Long> getArtworkIdsForNewestImages(ComponentName sourceComponentName,
+            List<Long> excludedIds, int limit);
+
     @TypeConverters(ComponentNameTypeConverter.class)
     @Query("DELETE FROM artwork WHERE sourceComponentName = :sourceComponentName " +
             "AND _id NOT IN (:ids)")
@@ -133,13 +284,24 @@ public abstract class ArtworkDao {
 
     public void deleteNonMatching(final Context context, final ComponentName sourceComponentName,
             final List<Long> ids) {
-        new Thread() {
+        IoExecutor.getInstance().execute(getDeleteKey(sourceComponentName), new Runnable() {
             @Override
             public void run() {
-                deleteImages(context, getNonMatchingForSource(sourceComponentName, ids));
-                deleteNonMatchingInternal(sourceComponentName, ids);
+                synchronized (ArtworkBlobStore.getLock()) {
+                    deleteImages(context, getNonMatchingForSource(sourceComponentName, ids));
+                    deleteNonMatchingInternal(sourceComponentName, ids);
+                }
+                invalidateCurrentArtwork();
             }
-        }.start();
+        });
+    }
+
+    /**
+     * Deletes for the same source are serialized so that they never race on the same rows
+     * and files.
+     */
+    private static String getDeleteKey(ComponentName sourceComponentName) {
+        return "delete_artwork:" + sourceComponentName.flattenToShortString();
     }
 
     @TypeConverters(UriTypeConverter.class)
@@ -147,8 +309,11 @@ public abstract class ArtworkDao {
     public abstract void deleteByImageUriInternal(Uri imageUri);
 
     public void deleteByImageUri(Context context, Uri imageUri) {
-        deleteImages(context, getArtworkByImageUri(imageUri));
-        deleteByImageUriInternal(imageUri);
+        synchronized (ArtworkBlobStore.getLock()) {
+            deleteImages(context, getArtworkByImageUri(imageUri));
+            deleteByImageUriInternal(imageUri);
+        }
+        invalidateCurrentArtwork();
     }
 
     @Query("SELECT * FROM artwork WHERE token=:token AND _id NOT IN (:deleteList)")
@@ -161,7 +326,9 @@ public abstract class ArtworkDao {
     /**
      * We can't just simply delete the rows as that won't free up the space occupied by the
      * artwork image files associated with each row being deleted. Instead we have to query
-     * and manually delete each artwork file
+     * and manually delete each artwork file. Images in the {@link ArtworkBlobStore} are deleted
+     * with a single query for the hashes still referenced by other rows. Callers must hold
+     * {@link ArtworkBlobStore#getLock()} until the rows themselves are deleted.
      */
     private void deleteImages(Context context, List<Artwork> artworkList) {
         // First we build a list of IDs to be deleted. This will be used if we need to determine
@@ -170,10 +337,19 @@ public abstract class ArtworkDao {
         for (Artwork artwork : artworkList) {
             idsToDelete.add(artwork.id);
         }
+        // Downloads still in progress for these rows will never be committed
+        ArtworkBlobStore.deleteStagingFiles(context, idsToDelete);
+        List<String> contentHashes = new ArrayList<>();
         // Now we actually go through the list of rows to be deleted
         // and check if we can delete the artwork image file associated with each one
         for (Artwork artwork : artworkList) {
-            if (TextUtils.isEmpty(artwork.token) && artwork.imageUri == null) {
+            // Derivatives are always unique to their row
+            ArtworkDerivatives.delete(context, artwork.id);
+            if (artwork.contentHash != null) {
+                if (!contentHashes.contains(artwork.contentHash)) {
+                    contentHashes.add(artwork.contentHash);
+                }
+            } else if (TextUtils.isEmpty(artwork.token) && artwork.imageUri == null) {
                 // An empty image URI and token means the artwork is unique to this specific row
                 // so we can always delete it when the associated row is deleted
                 File file = MuzeiProvider.getCacheFileForArtworkUri(context, artwork.id);
@@ -212,5 +388,8 @@ public abstract class ArtworkDao {
                 }
             }
         }
+        if (!contentHashes.isEmpty()) {
+            ArtworkBlobStore.deleteUnreferenced(context, contentHashes, idsToDelete);
+        }
     }
 }
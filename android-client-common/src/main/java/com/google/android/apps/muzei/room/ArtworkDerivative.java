@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.ColumnInfo;
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.ForeignKey;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+import android.provider.BaseColumns;
+import android.support.annotation.NonNull;
+
+/**
+ * A smaller copy of an artwork's image, pre-rendered once it is downloaded
+ */
+@Entity(tableName = "artwork_derivatives",
+        indices = @Index(value = {"artwork_id", "size"}, unique = true),
+        foreignKeys = @ForeignKey(
+                entity = Artwork.class,
+                parentColumns = BaseColumns._ID,
+                childColumns = "artwork_id",
+                onDelete = ForeignKey.CASCADE))
+public class ArtworkDerivative {
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = BaseColumns._ID)
+    public long id;
+
+    @ColumnInfo(name = "artwork_id")
+    public long artworkId;
+
+    /**
+     * Length of the derivative's shorter side in pixels
+     */
+    public int size;
+
+    public int width;
+
+    public int height;
+
+    @ColumnInfo(name = "mime_type")
+    @NonNull
+    public String mimeType = "";
+
+    /**
+     * Name of the derivative's file in the derivatives directory
+     */
+    @ColumnInfo(name = "file_name")
+    @NonNull
+    public String fileName = "";
+}
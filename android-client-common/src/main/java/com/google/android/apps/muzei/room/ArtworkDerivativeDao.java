@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+
+import java.util.List;
+
+/**
+ * Dao for ArtworkDerivatives
+ */
+@Dao
+public interface ArtworkDerivativeDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(ArtworkDerivative derivative);
+
+    @Query("SELECT * FROM artwork_derivatives WHERE artwork_id=:artworkId ORDER BY size")
+    List<ArtworkDerivative> getDerivativesBlocking(long artworkId);
+
+    /**
+     * Returns the smallest derivative whose shorter side is at least the given size.
+     */
+    @Query("SELECT * FROM artwork_derivatives WHERE artwork_id=:artworkId AND size >= :size " +
+            "ORDER BY size LIMIT 1")
+    ArtworkDerivative getDerivativeBlocking(long artworkId, int size);
+
+    @Query("DELETE FROM artwork_derivatives WHERE artwork_id=:artworkId")
+    void deleteForArtwork(long artworkId);
+}
@@ -19,19 +19,23 @@ package com.google.android.apps.muzei.room;
 import android.arch.lifecycle.Observer;
 import android.arch.persistence.db.SupportSQLiteDatabase;
 import android.arch.persistence.room.Database;
+import android.arch.persistence.room.InvalidationTracker;
 import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
 import android.content.Intent;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
 
+import java.util.Set;
+
 /**
  * Room Database for Muzei
  */
-@Database(entities = {Artwork.class, Source.class}, version = 4)
+@Database(entities = {Artwork.class, Source.class, ArtworkDerivative.class}, version = 8)
 public abstract class MuzeiDatabase extends RoomDatabase {
     private static MuzeiDatabase sInstance;
 
@@ -39,14 +43,26 @@ public abstract class MuzeiDatabase extends RoomDatabase {
 
     public abstract ArtworkDao artworkDao();
 
+    public abstract ArtworkDerivativeDao artworkDerivativeDao();
+
     public static MuzeiDatabase getInstance(Context context) {
         final Context applicationContext = context.getApplicationContext();
         if (sInstance == null) {
             sInstance = Room.databaseBuilder(applicationContext,
                     MuzeiDatabase.class, "muzei.db")
                     .allowMainThreadQueries()
-                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4,
+                            MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7,
+                            MIGRATION_7_8)
                     .build();
+            sInstance.getInvalidationTracker().addObserver(
+                    new InvalidationTracker.Observer(MuzeiContract.Artwork.TABLE_NAME) {
+                        @Override
+                        public void onInvalidated(@NonNull final Set<String> tables) {
+                            sInstance.artworkDao().invalidateCurrentArtwork();
+                        }
+                    }
+            );
             sInstance.sourceDao().getCurrentSource().observeForever(
                     new Observer<Source>() {
                         @Override
@@ -141,4 +157,56 @@ public abstract class MuzeiDatabase extends RoomDatabase {
             database.execSQL("ALTER TABLE artwork2 RENAME TO artwork");
         }
     };
+
+    private static Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            // Image metadata is filled in the next time each artwork is downloaded or opened
+            database.execSQL("ALTER TABLE artwork ADD COLUMN width INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE artwork ADD COLUMN height INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE artwork ADD COLUMN rotation INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE artwork ADD COLUMN mime_type TEXT");
+        }
+    };
+
+    private static Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE artwork_derivatives ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
+                    + "artwork_id INTEGER NOT NULL,"
+                    + "size INTEGER NOT NULL,"
+                    + "width INTEGER NOT NULL,"
+                    + "height INTEGER NOT NULL,"
+                    + "mime_type TEXT NOT NULL,"
+                    + "file_name TEXT NOT NULL,"
+                    + " FOREIGN KEY (artwork_id) REFERENCES "
+                    + "Artwork (_id) ON DELETE CASCADE);");
+            database.execSQL("CREATE UNIQUE INDEX index_artwork_derivatives_artwork_id_size "
+                    + "ON artwork_derivatives (artwork_id, size)");
+        }
+    };
+
+    private static Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            // Existing artwork keeps using its previous file until it is deleted
+            database.execSQL("ALTER TABLE artwork ADD COLUMN content_hash TEXT");
+            database.execSQL("CREATE INDEX index_Artwork_content_hash "
+                    + "ON artwork (content_hash)");
+        }
+    };
+
+    private static Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            // MIGRATION_3_4 recreated the artwork table without its sourceComponentName index
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_Artwork_sourceComponentName "
+                    + "ON artwork (sourceComponentName)");
+            database.execSQL("CREATE INDEX index_Artwork_date_added ON artwork (date_added)");
+            database.execSQL("CREATE INDEX index_Artwork_imageUri ON artwork (imageUri)");
+            database.execSQL("CREATE INDEX index_Artwork_token ON artwork (token)");
+            database.execSQL("CREATE INDEX index_sources_selected ON sources (selected)");
+        }
+    };
 }
@@ -35,7 +35,9 @@ import java.util.List;
 /**
  * Source information's representation in Room
  */
-@Entity(tableName = "sources", indices = @Index(value = "component_name", unique = true))
+@Entity(tableName = "sources", indices = {
+        @Index(value = "component_name", unique = true),
+        @Index(value = "selected")})
 public class Source {
     @PrimaryKey(autoGenerate = true)
     @ColumnInfo(name = BaseColumns._ID)
@@ -57,10 +57,10 @@ public interface SourceDao {
     @Query("SELECT * FROM sources ORDER BY selected DESC, component_name")
     List<Source> getSourcesBlocking();
 
-    @Query("SELECT * FROM sources WHERE selected=1 ORDER BY component_name")
+    @Query("SELECT * FROM sources WHERE selected=1 ORDER BY component_name LIMIT 1")
     LiveData<Source> getCurrentSource();
 
-    @Query("SELECT * FROM sources WHERE selected=1 ORDER BY component_name")
+    @Query("SELECT * FROM sources WHERE selected=1 ORDER BY component_name LIMIT 1")
     Source getCurrentSourceBlocking();
 
     @Query("SELECT * FROM sources WHERE selected=1 AND network=1")
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.room.Artwork;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process wide cache of downsampled artwork bitmaps, keyed by artwork id, target size and
+ * transform. Bitmaps are kept in memory least recently used first up to a byte budget, and
+ * written to a disk tier so that they survive the process. Concurrent requests for the same
+ * bitmap share a single decode.
+ *
+ * <p>Returned bitmaps are shared, so they must not be modified or recycled.
+ */
+public class ArtworkBitmapCache {
+    private static final String TAG = "ArtworkBitmapCache";
+
+    /**
+     * Use the image as decoded.
+     */
+    public static final int TRANSFORM_NONE = 0;
+    /**
+     * Rotate the image according to its EXIF orientation so that it is right side up.
+     */
+    public static final int TRANSFORM_EXIF_ROTATION = 1;
+
+    private static final String DISK_CACHE_DIRECTORY = "artwork_bitmap_cache";
+    private static final long MAX_DISK_BYTES = 16 * 1024 * 1024;
+    // Enough to read the image header and EXIF data without opening the artwork again
+    private static final int MARK_LIMIT = 64 * 1024;
+
+    private static ArtworkBitmapCache sInstance;
+
+    private static final class Key {
+        final long artworkId;
+        final int targetWidth;
+        final int targetHeight;
+        final int transform;
+
+        Key(long artworkId, int targetWidth, int targetHeight, int transform) {
+            this.artworkId = artworkId;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.transform = transform;
+        }
+
+        String getFileName() {
+            return artworkId + "_" + targetWidth + "x" + targetHeight + "_" + transform + ".png";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return artworkId == key.artworkId && targetWidth == key.targetWidth
+                    && targetHeight == key.targetHeight && transform == key.transform;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (artworkId ^ (artworkId >>> 32));
+            result = 31 * result + targetWidth;
+            result = 31 * result + targetHeight;
+            result = 31 * result + transform;
+            return result;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final File mDiskCacheDirectory;
+    private final LruCache<Key, Bitmap> mMemoryCache;
+    private final ConcurrentHashMap<Key, FutureTask<Bitmap>> mPendingDecodes =
+            new ConcurrentHashMap<>();
+
+    public static synchronized ArtworkBitmapCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new ArtworkBitmapCache(applicationContext,
+                    new File(applicationContext.getCacheDir(), DISK_CACHE_DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param diskCacheDirectory directory for the disk tier, or null to only cache in memory
+     */
+    ArtworkBitmapCache(Context context, @Nullable File diskCacheDirectory) {
+        mContentResolver = context.getContentResolver();
+        mDiskCacheDirectory = diskCacheDirectory;
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the given artwork, downsampled by the largest power of two that keeps it at least
+     * {@code targetWidth} wide and {@code targetHeight} tall. A target of 0 leaves that dimension
+     * unconstrained. Blocks while the artwork is decoded.
+     *
+     * @param transform one of {@link #TRANSFORM_NONE} or {@link #TRANSFORM_EXIF_ROTATION}
+     * @return the bitmap, or null if the artwork could not be decoded
+     * @throws FileNotFoundException if the artwork's image does not exist
+     */
+    @WorkerThread
+    @Nullable
+    public Bitmap get(long artworkId, int targetWidth, int targetHeight, int transform)
+            throws FileNotFoundException {
+        return get(artworkId, null, targetWidth, targetHeight, transform);
+    }
+
+    /**
+     * Same as {@link #get(long, int, int, int)}, but uses the artwork's stored image metadata when
+     * known so that the image only needs to be read once.
+     */
+    @WorkerThread
+    @Nullable
+    public Bitmap get(Artwork artwork, int targetWidth, int targetHeight, int transform)
+            throws FileNotFoundException {
+        return get(artwork.id, artwork.hasMetadata() ? artwork : null,
+                targetWidth, targetHeight, transform);
+    }
+
+    private Bitmap get(long artworkId, @Nullable final Artwork metadata, int targetWidth,
+            int targetHeight, int transform) throws FileNotFoundException {
+        final Key key = new Key(artworkId, targetWidth, targetHeight, transform);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        FutureTask<Bitmap> decode = new FutureTask<>(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws IOException {
+                return load(key, metadata);
+            }
+        });
+        FutureTask<Bitmap> pendingDecode = mPendingDecodes.putIfAbsent(key, decode);
+        if (pendingDecode == null) {
+            // Nobody else is decoding this bitmap, so decode it on this thread
+            pendingDecode = decode;
+            try {
+                decode.run();
+            } finally {
+                mPendingDecodes.remove(key, decode);
+            }
+        }
+        try {
+            return pendingDecode.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundException) {
+                throw (FileNotFoundException) e.getCause();
+            }
+            Log.e(TAG, "Error decoding artwork " + artworkId, e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Drops all bitmaps held in memory.
+     */
+    public void evictMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    private Bitmap load(Key key, @Nullable Artwork metadata) throws IOException {
+        File file = mDiskCacheDirectory != null
+                ? new File(mDiskCacheDirectory, key.getFileName())
+                : null;
+        Bitmap bitmap = null;
+        if (file != null && file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                // Keep the disk tier least recently used first
+                file.setLastModified(System.currentTimeMillis());
+            }
+        }
+        if (bitmap == null) {
+            bitmap = decode(key, metadata);
+            if (bitmap == null) {
+                return null;
+            }
+            if (file != null) {
+                writeToDisk(bitmap, file);
+            }
+        }
+        mMemoryCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    private Bitmap decode(Key key, @Nullable Artwork metadata) throws IOException {
+        Uri uri = Artwork.getContentUri(key.artworkId);
+        int rotation = 0;
+        if (metadata != null) {
+            if (key.transform == TRANSFORM_EXIF_ROTATION) {
+                rotation = metadata.rotation;
+            }
+            // Read a pre-rendered derivative instead of the full image when one is large enough
+            int size = getMinimumShortestLength(metadata, key);
+            if (size > 0) {
+                uri = uri.buildUpon()
+                        .appendQueryParameter(MuzeiProvider.QUERY_PARAMETER_SIZE,
+                                Integer.toString(size))
+                        .build();
+            }
+        }
+        InputStream in = openArtwork(uri);
+        try {
+            if (metadata == null && key.transform == TRANSFORM_EXIF_ROTATION) {
+                rotation = ImageMetadata.readRotation(in);
+                in = rewind(in, uri);
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            in = rewind(in, uri);
+            options.inJustDecodeBounds = false;
+            int sampleSize = Math.min(
+                    calculateSampleSize(options.outWidth, key.targetWidth),
+                    calculateSampleSize(options.outHeight, key.targetHeight));
+            options.inSampleSize = sampleSize != Integer.MAX_VALUE ? sampleSize : 1;
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            if (bitmap != null && rotation != 0) {
+                Matrix matrix = new Matrix();
+                matrix.postRotate(rotation);
+                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                        matrix, true);
+            }
+            return bitmap;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the length of the image's shorter side needed to cover the key's target size, or 0
+     * if the key has no target size.
+     */
+    private static int getMinimumShortestLength(Artwork metadata, Key key) {
+        int shortestLength = Math.min(metadata.width, metadata.height);
+        int size = 0;
+        if (key.targetWidth > 0) {
+            size = (int) Math.ceil((double) key.targetWidth * shortestLength / metadata.width);
+        }
+        if (key.targetHeight > 0) {
+            size = Math.max(size,
+                    (int) Math.ceil((double) key.targetHeight * shortestLength / metadata.height));
+        }
+        return size;
+    }
+
+    private InputStream openArtwork(Uri uri) throws FileNotFoundException {
+        InputStream in = mContentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Could not open " + uri);
+        }
+        in = new BufferedInputStream(in, MARK_LIMIT);
+        in.mark(MARK_LIMIT);
+        return in;
+    }
+
+    /**
+     * Resets the stream to the start of the image, only opening it again when more than
+     * {@link #MARK_LIMIT} bytes were read.
+     */
+    private InputStream rewind(InputStream in, Uri uri) throws IOException {
+        try {
+            in.reset();
+            in.mark(MARK_LIMIT);
+            return in;
+        } catch (IOException e) {
+            in.close();
+            return openArtwork(uri);
+        }
+    }
+
+    private static int calculateSampleSize(int rawSize, int targetSize) {
+        if (targetSize <= 0) {
+            // Unconstrained, so let the other dimension decide
+            return Integer.MAX_VALUE;
+        }
+        int sampleSize = 1;
+        while (rawSize / (sampleSize << 1) > targetSize) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+
+    private void writeToDisk(Bitmap bitmap, File file) {
+        if (!mDiskCacheDirectory.exists() && !mDiskCacheDirectory.mkdirs()) {
+            return;
+        }
+        // Write to a temporary file first so that readers never see a partial file
+        File tempFile = new File(mDiskCacheDirectory, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing " + file.getName(), e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return;
+        }
+        trimDiskCache();
+    }
+
+    private synchronized void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        while (totalBytes > MAX_DISK_BYTES) {
+            File oldest = null;
+            for (File file : files) {
+                if (file != null && (oldest == null
+                        || file.lastModified() < oldest.lastModified())) {
+                    oldest = file;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            for (int i = 0; i < files.length; i++) {
+                if (files[i] == oldest) {
+                    files[i] = null;
+                }
+            }
+            totalBytes -= oldest.length();
+            oldest.delete();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * A backend that can produce blurred and desaturated copies of a single source bitmap.
+ *
+ * @see ImageBlurrer
+ * @see JavaBlurrer
+ */
+public interface Blurrer {
+    /**
+     * Returns a new bitmap containing the source bitmap blurred by the given radius and
+     * desaturated by the given amount (from 0 to 1), or null if the calling thread was
+     * interrupted while blurring.
+     */
+    Bitmap blurBitmap(float radius, float desaturateAmount);
+
+    /**
+     * Produces a series of increasingly blurred and desaturated keyframes in a single pass. Each
+     * keyframe is derived from the previous one rather than from the source bitmap, since
+     * successive Gaussian blurs and desaturations compose. Radii and desaturation amounts must
+     * therefore be non-decreasing.
+     *
+     * <p>The bitmap handed to the callback is shared between keyframes and is only valid for the
+     * duration of the callback. Returning false from the callback stops producing keyframes, as
+     * does interrupting the calling thread, in which case the unfinished keyframe isn't handed
+     * to the callback.
+     */
+    void blurKeyframes(float[] radii, float[] desaturateAmounts, KeyframeCallback callback);
+
+    /**
+     * Releases any resources held by this Blurrer. It must not be used afterwards.
+     */
+    void destroy();
+
+    interface KeyframeCallback {
+        /**
+         * @return whether to go on producing the next keyframe
+         */
+        boolean onKeyframe(int keyframe, Bitmap bitmap);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pure-Java blur for packed ARGB pixel buffers. A Gaussian is approximated with three successive
+ * box blurs along each axis, with desaturation folded into the very last pass.
+ *
+ * <p>Scratch buffers are sized once at construction and reused for every call, so blurring any
+ * number of keyframes of the same dimensions doesn't allocate pixel memory. Rows (and then
+ * columns) are split across a fixed pool of worker threads.
+ */
+public class BoxBlur {
+    private static final int PASSES = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mScratch1;
+    private final int[] mScratch2;
+    private final int[] mBoxRadii = new int[PASSES];
+
+    private final ExecutorService mExecutorService;
+    private final List<Callable<Void>> mWorkers;
+
+    // State of the pass currently being run by the workers
+    private int[] mPassSrc;
+    private int[] mPassDst;
+    private int mPassRadius;
+    private boolean mPassHorizontal;
+    private int mPassDesaturate;
+
+    public BoxBlur(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BoxBlur(int width, int height, int threads) {
+        mWidth = width;
+        mHeight = height;
+        mScratch1 = new int[width * height];
+        mScratch2 = new int[width * height];
+
+        threads = Math.max(1, Math.min(threads, Math.min(width, height)));
+        if (threads == 1) {
+            mExecutorService = null;
+            mWorkers = null;
+        } else {
+            mExecutorService = Executors.newFixedThreadPool(threads);
+            mWorkers = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                mWorkers.add(new Worker(i, threads));
+            }
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Blurs {@code src} into {@code dst}, both of which must hold {@code width * height} ARGB
+     * pixels. {@code src} is left untouched unless it is also passed as {@code dst}, which is
+     * allowed.
+     *
+     * @param radius           blur radius, matching the meaning of RenderScript's
+     *                         ScriptIntrinsicBlur radius
+     * @param desaturateAmount desaturation amount from 0 to 1
+     * @return false if the calling thread was interrupted, in which case {@code dst} holds an
+     * incomplete blur and the thread's interrupted status is left set
+     */
+    public boolean blur(int[] src, int[] dst, float radius, float desaturateAmount) {
+        int desaturate = (int) (MathUtil.constrain(0, 1, desaturateAmount) * 256);
+        if (radius <= 0) {
+            // Only desaturate (or copy)
+            return runPass(src, dst, 0, true, desaturate);
+        }
+
+        computeBoxRadii(sigmaForRadius(radius), mBoxRadii);
+        return runPass(src, mScratch1, mBoxRadii[0], true, 0)
+                && runPass(mScratch1, mScratch2, mBoxRadii[1], true, 0)
+                && runPass(mScratch2, mScratch1, mBoxRadii[2], true, 0)
+                && runPass(mScratch1, mScratch2, mBoxRadii[0], false, 0)
+                && runPass(mScratch2, mScratch1, mBoxRadii[1], false, 0)
+                && runPass(mScratch1, dst, mBoxRadii[2], false, desaturate);
+    }
+
+    public void destroy() {
+        if (mExecutorService != null) {
+            mExecutorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the standard deviation of the Gaussian that RenderScript's ScriptIntrinsicBlur
+     * uses for the given radius.
+     */
+    public static float sigmaForRadius(float radius) {
+        return 0.4f * radius + 0.6f;
+    }
+
+    /**
+     * Reverse of {@link #sigmaForRadius(float)}.
+     */
+    public static float radiusForSigma(float sigma) {
+        return (sigma - 0.6f) / 0.4f;
+    }
+
+    /**
+     * Returns the radius of the blur that, applied to an image already blurred by
+     * {@code previousRadius}, results in an image blurred by {@code radius}.
+     */
+    public static float incrementalRadius(float previousRadius, float radius) {
+        if (previousRadius <= 0) {
+            return radius;
+        }
+        float previousSigma = sigmaForRadius(previousRadius);
+        float sigma = sigmaForRadius(radius);
+        if (sigma <= previousSigma) {
+            return 0;
+        }
+        return Math.max(0, radiusForSigma(
+                (float) Math.sqrt(sigma * sigma - previousSigma * previousSigma)));
+    }
+
+    /**
+     * Returns the desaturation that, applied to an image already desaturated by
+     * {@code previousAmount}, results in an image desaturated by {@code amount}.
+     */
+    public static float incrementalDesaturation(float previousAmount, float amount) {
+        if (previousAmount >= 1) {
+            return 0;
+        }
+        return MathUtil.constrain(0, 1, (amount - previousAmount) / (1 - previousAmount));
+    }
+
+    /**
+     * Computes the radii of {@code boxRadii.length} successive box blurs that together best
+     * approximate a Gaussian with the given standard deviation.
+     */
+    static void computeBoxRadii(float sigma, int[] boxRadii) {
+        int n = boxRadii.length;
+        float variance12 = 12 * sigma * sigma;
+        int lowerWidth = (int) Math.floor(Math.sqrt(variance12 / n + 1));
+        if (lowerWidth % 2 == 0) {
+            --lowerWidth;
+        }
+        int upperWidth = lowerWidth + 2;
+        int lowerCount = Math.round((variance12 - n * lowerWidth * lowerWidth
+                - 4 * n * lowerWidth - 3 * n) / (-4f * lowerWidth - 4));
+        for (int i = 0; i < n; i++) {
+            boxRadii[i] = ((i < lowerCount ? lowerWidth : upperWidth) - 1) / 2;
+        }
+    }
+
+    /**
+     * Returns false if the calling thread was interrupted before the pass completed.
+     */
+    private boolean runPass(int[] src, int[] dst, int radius, boolean horizontal,
+            int desaturate) {
+        mPassSrc = src;
+        mPassDst = dst;
+        mPassRadius = radius;
+        mPassHorizontal = horizontal;
+        mPassDesaturate = desaturate;
+
+        if (mExecutorService == null) {
+            processLines(0, horizontal ? mHeight : mWidth);
+            return !Thread.currentThread().isInterrupted();
+        }
+
+        try {
+            for (Future<Void> future : mExecutorService.invokeAll(mWorkers)) {
+                future.get();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            // invokeAll cancels the workers that haven't finished
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error blurring pixels", e.getCause());
+        }
+    }
+
+    private void processLines(int start, int end) {
+        int[] src = mPassSrc;
+        int[] dst = mPassDst;
+        int radius = mPassRadius;
+        int desaturate = mPassDesaturate;
+        int length = mPassHorizontal ? mWidth : mHeight;
+        int stride = mPassHorizontal ? 1 : mWidth;
+        for (int line = start; line < end; line++) {
+            int offset = mPassHorizontal ? line * mWidth : line;
+            boxLine(src, dst, offset, stride, length, radius, desaturate);
+        }
+    }
+
+    /**
+     * Box blurs a single row or column using a running sum, clamping to the edge pixels.
+     */
+    private static void boxLine(int[] src, int[] dst, int offset, int stride, int length,
+            int radius, int desaturate) {
+        int last = length - 1;
+        int div = 2 * radius + 1;
+        int sumR = 0, sumG = 0, sumB = 0;
+        int p;
+        for (int i = -radius; i <= radius; i++) {
+            p = src[offset + Math.max(0, Math.min(i, last)) * stride];
+            sumR += (p >> 16) & 0xff;
+            sumG += (p >> 8) & 0xff;
+            sumB += p & 0xff;
+        }
+
+        int r, g, b, lum, index;
+        for (int i = 0; i < length; i++) {
+            index = offset + i * stride;
+            r = (sumR + radius) / div;
+            g = (sumG + radius) / div;
+            b = (sumB + radius) / div;
+            if (desaturate != 0) {
+                lum = (r * 77 + g * 150 + b * 29) >> 8;
+                r += ((lum - r) * desaturate) >> 8;
+                g += ((lum - g) * desaturate) >> 8;
+                b += ((lum - b) * desaturate) >> 8;
+            }
+
+            // Slide the window before writing dst[index] so that a zero radius pass can run
+            // in place
+            p = src[offset + Math.max(i - radius, 0) * stride];
+            sumR -= (p >> 16) & 0xff;
+            sumG -= (p >> 8) & 0xff;
+            sumB -= p & 0xff;
+            p = src[offset + Math.min(i + radius + 1, last) * stride];
+            sumR += (p >> 16) & 0xff;
+            sumG += (p >> 8) & 0xff;
+            sumB += p & 0xff;
+
+            dst[index] = (src[index] & 0xff000000) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private class Worker implements Callable<Void> {
+        private final int mIndex;
+        private final int mCount;
+
+        Worker(int index, int count) {
+            mIndex = index;
+            mCount = count;
+        }
+
+        @Override
+        public Void call() {
+            int lines = mPassHorizontal ? mHeight : mWidth;
+            processLines(lines * mIndex / mCount, lines * (mIndex + 1) / mCount);
+            return null;
+        }
+    }
+}
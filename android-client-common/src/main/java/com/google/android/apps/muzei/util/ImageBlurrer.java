@@ -25,7 +25,10 @@ import android.renderscript.RenderScript;
 import android.renderscript.ScriptIntrinsicBlur;
 import android.renderscript.ScriptIntrinsicColorMatrix;
 
-public class ImageBlurrer {
+/**
+ * {@link Blurrer} backed by RenderScript intrinsics.
+ */
+public class ImageBlurrer implements Blurrer {
     public static final int MAX_SUPPORTED_BLUR_PIXELS = 25;
 
     private final RenderScript mRS;
@@ -43,6 +46,7 @@ public class ImageBlurrer {
         mAllocationSrc = src != null ? Allocation.createFromBitmap(mRS, src) : null;
     }
 
+    @Override
     public Bitmap blurBitmap(float radius, float desaturateAmount) {
         if (mSourceBitmap == null) {
             return null;
@@ -70,6 +74,56 @@ public class ImageBlurrer {
         return dest;
     }
 
+    @Override
+    public void blurKeyframes(float[] radii, float[] desaturateAmounts,
+            KeyframeCallback callback) {
+        if (mSourceBitmap == null) {
+            return;
+        }
+
+        Bitmap dest = mSourceBitmap.copy(mSourceBitmap.getConfig(), true);
+        Allocation current = Allocation.createFromBitmap(mRS, dest);
+        Allocation other = Allocation.createTyped(mRS, current.getType());
+        // Successive blurs add their variances. Increments clamped to MAX_SUPPORTED_BLUR_PIXELS
+        // blur less than requested, so track what was actually applied
+        float appliedVariance = 0;
+        float previousDesaturateAmount = 0;
+        for (int f = 0; f < radii.length; f++) {
+            float appliedRadius = appliedVariance > 0
+                    ? BoxBlur.radiusForSigma((float) Math.sqrt(appliedVariance))
+                    : 0;
+            float radius = Math.min(MAX_SUPPORTED_BLUR_PIXELS,
+                    BoxBlur.incrementalRadius(appliedRadius, radii[f]));
+            float desaturateAmount = MathUtil.constrain(0, 1, desaturateAmounts[f]);
+            float incrementalDesaturateAmount = BoxBlur.incrementalDesaturation(
+                    previousDesaturateAmount, desaturateAmount);
+            previousDesaturateAmount = Math.max(previousDesaturateAmount, desaturateAmount);
+
+            Allocation swap;
+            if (radius > 0f) {
+                float sigma = BoxBlur.sigmaForRadius(radius);
+                appliedVariance += sigma * sigma;
+                doBlur(radius, current, other);
+                swap = current;
+                current = other;
+                other = swap;
+            }
+            if (incrementalDesaturateAmount > 0f) {
+                doDesaturate(incrementalDesaturateAmount, current, other);
+                swap = current;
+                current = other;
+                other = swap;
+            }
+            current.copyTo(dest);
+            if (!callback.onKeyframe(f, dest)) {
+                break;
+            }
+        }
+        current.destroy();
+        other.destroy();
+        dest.recycle();
+    }
+
     private void doBlur(float amount, Allocation input, Allocation output) {
         mSIBlur.setRadius(amount);
         mSIBlur.setInput(input);
@@ -94,6 +148,7 @@ public class ImageBlurrer {
         mSIGrey.forEach(input, output);
     }
 
+    @Override
     public void destroy() {
         mSIBlur.destroy();
         mSIGrey.destroy();
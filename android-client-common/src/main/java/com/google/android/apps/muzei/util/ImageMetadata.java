@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.media.ExifInterface;
+import android.util.Log;
+
+import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Dimensions, EXIF rotation and mime type of an image, read from its header in a single pass
+ * over one stream.
+ */
+public class ImageMetadata {
+    private static final String TAG = "ImageMetadata";
+
+    // Image headers, including EXIF data and its embedded thumbnail, fit well within this
+    private static final int MARK_LIMIT = 512 * 1024;
+
+    public final int width;
+    public final int height;
+    public final int rotation;
+    public final String mimeType;
+
+    private ImageMetadata(int width, int height, int rotation, String mimeType) {
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Reads the metadata of the image in the given stream, which is not closed.
+     *
+     * @return the metadata, or null if the stream isn't an image
+     * @throws IOException if the stream couldn't be read, or its header was too large to read
+     * both the dimensions and the EXIF data from it
+     */
+    @Nullable
+    public static ImageMetadata probe(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        in.mark(MARK_LIMIT);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(in, null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        in.reset();
+        return new ImageMetadata(options.outWidth, options.outHeight, readRotation(in),
+                options.outMimeType);
+    }
+
+    /**
+     * Probes the downloaded image of the given artwork and stores the result in the database.
+     * Returns the updated artwork, which is unchanged if the image couldn't be probed.
+     */
+    @WorkerThread
+    public static Artwork probeAndStore(Context context, Artwork artwork) {
+        try (InputStream in = context.getContentResolver().openInputStream(
+                artwork.getContentUri())) {
+            if (in == null) {
+                return artwork;
+            }
+            ImageMetadata metadata = probe(in);
+            if (metadata == null) {
+                return artwork;
+            }
+            artwork.width = metadata.width;
+            artwork.height = metadata.height;
+            artwork.rotation = metadata.rotation;
+            artwork.mimeType = metadata.mimeType;
+            MuzeiDatabase.getInstance(context).artworkDao().updateMetadata(artwork.id,
+                    artwork.width, artwork.height, artwork.rotation, artwork.mimeType);
+        } catch (IOException|SecurityException e) {
+            Log.w(TAG, "Unable to probe artwork " + artwork.id, e);
+        }
+        return artwork;
+    }
+
+    /**
+     * Returns the clockwise rotation in degrees given by the EXIF orientation in the given
+     * stream, or 0 if there is none.
+     */
+    public static int readRotation(InputStream in) {
+        try {
+            ExifInterface exifInterface = new ExifInterface(in);
+            switch (exifInterface.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90: return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180: return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270: return 270;
+            }
+        } catch (IOException|NumberFormatException|StackOverflowError e) {
+            Log.w(TAG, "Couldn't read EXIF orientation", e);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * {@link Blurrer} backed by {@link BoxBlur}, for devices where RenderScript is unavailable or
+ * only runs on the CPU. The source pixels are extracted once and the scratch buffers are shared
+ * by every call to {@link #blurBitmap(float, float)}.
+ */
+public class JavaBlurrer implements Blurrer {
+    private final Bitmap mSourceBitmap;
+    private final BoxBlur mBoxBlur;
+    private final int[] mSourcePixels;
+    private final int[] mDestPixels;
+    private Bitmap mKeyframeBitmap;
+
+    public JavaBlurrer(Bitmap src) {
+        mSourceBitmap = src;
+        if (src == null) {
+            mBoxBlur = null;
+            mSourcePixels = null;
+            mDestPixels = null;
+            return;
+        }
+
+        int width = src.getWidth();
+        int height = src.getHeight();
+        mBoxBlur = new BoxBlur(width, height);
+        mSourcePixels = new int[width * height];
+        mDestPixels = new int[width * height];
+        src.getPixels(mSourcePixels, 0, width, 0, 0, width, height);
+    }
+
+    @Override
+    public Bitmap blurBitmap(float radius, float desaturateAmount) {
+        if (mSourceBitmap == null) {
+            return null;
+        }
+
+        if (radius == 0f && desaturateAmount == 0f) {
+            return mSourceBitmap.copy(mSourceBitmap.getConfig(), true);
+        }
+
+        int width = mBoxBlur.getWidth();
+        int height = mBoxBlur.getHeight();
+        if (!mBoxBlur.blur(mSourcePixels, mDestPixels, radius, desaturateAmount)) {
+            return null;
+        }
+        Bitmap dest = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        dest.setPixels(mDestPixels, 0, width, 0, 0, width, height);
+        return dest;
+    }
+
+    @Override
+    public void blurKeyframes(float[] radii, float[] desaturateAmounts,
+            KeyframeCallback callback) {
+        if (mSourceBitmap == null) {
+            return;
+        }
+
+        int width = mBoxBlur.getWidth();
+        int height = mBoxBlur.getHeight();
+        if (mKeyframeBitmap == null) {
+            mKeyframeBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        int[] input = mSourcePixels;
+        float previousRadius = 0;
+        float previousDesaturateAmount = 0;
+        for (int f = 0; f < radii.length; f++) {
+            float desaturateAmount = MathUtil.constrain(0, 1, desaturateAmounts[f]);
+            if (!mBoxBlur.blur(input, mDestPixels,
+                    BoxBlur.incrementalRadius(previousRadius, radii[f]),
+                    BoxBlur.incrementalDesaturation(previousDesaturateAmount, desaturateAmount))) {
+                // Interrupted part way, so this keyframe and any after it are never delivered
+                return;
+            }
+            input = mDestPixels;
+            previousRadius = Math.max(previousRadius, radii[f]);
+            previousDesaturateAmount = Math.max(previousDesaturateAmount, desaturateAmount);
+
+            mKeyframeBitmap.setPixels(mDestPixels, 0, width, 0, 0, width, height);
+            if (!callback.onKeyframe(f, mKeyframeBitmap)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (mBoxBlur != null) {
+            mBoxBlur.destroy();
+        }
+        if (mKeyframeBitmap != null) {
+            mKeyframeBitmap.recycle();
+            mKeyframeBitmap = null;
+        }
+    }
+}
@@ -40,6 +40,10 @@ public class MathUtil {
         return (num + 2) & ~0x03;
     }
 
+    public static int roundUpMult4(int num) {
+        return (num + 3) & ~0x03;
+    }
+
     // divide two integers but round up
     // see http://stackoverflow.com/a/7446742/102703
     public static int intDivideRoundUp(int num, int divisor) {
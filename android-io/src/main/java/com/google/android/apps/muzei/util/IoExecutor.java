@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs background database and file work on a small, shared pool of named threads instead of
+ * a new thread per task. Tasks submitted with the same key run one at a time, in submission
+ * order, so for example cleanup for one source never runs twice concurrently. Tasks with
+ * different keys, or no key, run in parallel up to the pool size.
+ */
+public class IoExecutor implements Executor {
+    private static final int POOL_SIZE = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static IoExecutor sInstance;
+
+    private final Executor mExecutor;
+    private final Map<String, ArrayDeque<Runnable>> mKeyQueues = new HashMap<>();
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicLong mCompletedTaskCount = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+    public static synchronized IoExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new IoExecutor(createThreadPool());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replaces the shared instance, such as with one wrapping a direct executor so that tasks run
+     * synchronously and deterministically under test.
+     */
+    @VisibleForTesting
+    public static synchronized void setInstance(@Nullable IoExecutor ioExecutor) {
+        sInstance = ioExecutor;
+    }
+
+    private static Executor createThreadPool() {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "MuzeiIO #" + mThreadCount.incrementAndGet());
+                    }
+                });
+        threadPool.allowCoreThreadTimeOut(true);
+        return threadPool;
+    }
+
+    @VisibleForTesting
+    public IoExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        execute(null, task);
+    }
+
+    /**
+     * Runs the given task after every task previously submitted with the same key has finished.
+     *
+     * @param key the key to serialize on, or null to run the task as soon as a thread is free
+     */
+    public void execute(@Nullable final String key, @NonNull final Runnable task) {
+        final long submitTime = System.nanoTime();
+        mQueueDepth.incrementAndGet();
+        final Runnable measuredTask = new Runnable() {
+            @Override
+            public void run() {
+                mQueueDepth.decrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    recordLatency(System.nanoTime() - submitTime);
+                }
+            }
+        };
+        if (key == null) {
+            mExecutor.execute(measuredTask);
+            return;
+        }
+        synchronized (mKeyQueues) {
+            ArrayDeque<Runnable> queue = mKeyQueues.get(key);
+            if (queue != null) {
+                // A task with this key is running, it'll start this one when it is done
+                queue.add(measuredTask);
+                return;
+            }
+            mKeyQueues.put(key, new ArrayDeque<Runnable>());
+        }
+        runSerially(key, measuredTask);
+    }
+
+    private void runSerially(final String key, final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    Runnable next;
+                    synchronized (mKeyQueues) {
+                        next = mKeyQueues.get(key).poll();
+                        if (next == null) {
+                            mKeyQueues.remove(key);
+                        }
+                    }
+                    if (next != null) {
+                        // Resubmit rather than loop so other keys get a fair share of the pool
+                        runSerially(key, next);
+                    }
+                }
+            }
+        });
+    }
+
+    private void recordLatency(long latencyNanos) {
+        mCompletedTaskCount.incrementAndGet();
+        mTotalLatencyNanos.addAndGet(latencyNanos);
+        long max;
+        do {
+            max = mMaxLatencyNanos.get();
+        } while (latencyNanos > max && !mMaxLatencyNanos.compareAndSet(max, latencyNanos));
+    }
+
+    /**
+     * Returns the number of submitted tasks that haven't started yet.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished, successfully or not.
+     */
+    public long getCompletedTaskCount() {
+        return mCompletedTaskCount.get();
+    }
+
+    /**
+     * Returns the average time in milliseconds from a task being submitted to it finishing.
+     */
+    public long getAverageLatencyMillis() {
+        long completed = mCompletedTaskCount.get();
+        return completed > 0
+                ? TimeUnit.NANOSECONDS.toMillis(mTotalLatencyNanos.get() / completed)
+                : 0;
+    }
+
+    /**
+     * Returns the longest time in milliseconds from a task being submitted to it finishing.
+     */
+    public long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxLatencyNanos.get());
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("I/O executor:");
+        writer.println(String.format(Locale.US, "  Tasks: %d queued, %d completed",
+                getQueueDepth(), getCompletedTaskCount()));
+        writer.println(String.format(Locale.US, "  Latency: average %dms, max %dms",
+                getAverageLatencyMillis(), getMaxLatencyMillis()));
+    }
+}
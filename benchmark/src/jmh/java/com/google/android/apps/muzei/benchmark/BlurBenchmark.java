@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.benchmark;
+
+import com.google.android.apps.muzei.render.GaussianKernel;
+import com.google.android.apps.muzei.util.BoxBlur;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+
+/**
+ * Benchmarks blurring a keyframe sized image with the Java blur and the reference
+ * implementation of the blur shader.
+ */
+@State(Scope.Thread)
+public class BlurBenchmark {
+    private static final int WIDTH = 432;
+    private static final int HEIGHT = 480;
+
+    @Param({"4", "16"})
+    public float radius;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private int[] mSrc;
+    private int[] mDst;
+    private int[] mScratch;
+    private BoxBlur mBoxBlur;
+
+    @Setup
+    public void setUp() {
+        mSrc = new int[WIDTH * HEIGHT];
+        mDst = new int[WIDTH * HEIGHT];
+        mScratch = new int[WIDTH * HEIGHT];
+        Random random = new Random(0);
+        for (int i = 0; i < mSrc.length; i++) {
+            mSrc[i] = 0xff000000 | random.nextInt(0xffffff);
+        }
+        mBoxBlur = new BoxBlur(WIDTH, HEIGHT, threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBoxBlur.destroy();
+    }
+
+    @Benchmark
+    public int[] boxBlur() {
+        mBoxBlur.blur(mSrc, mDst, radius, 0.5f);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] gaussianKernel() {
+        // Leave the source untouched so that every iteration blurs the same image
+        float sigma = BoxBlur.sigmaForRadius(radius);
+        GaussianKernel.convolve(mSrc, mScratch, WIDTH, HEIGHT, sigma, true);
+        GaussianKernel.convolve(mScratch, mDst, WIDTH, HEIGHT, sigma, false);
+        return mDst;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.benchmark;
+
+import android.graphics.Color;
+
+import com.google.android.apps.muzei.render.ImageUtil;
+import com.google.android.apps.muzei.render.LuminanceAnalyzer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks the image analysis done while loading an artwork.
+ */
+@State(Scope.Thread)
+public class ImageBenchmark {
+    // 64px previews up to blurred keyframe sized buffers
+    @Param({"64", "480"})
+    public int height;
+
+    private int mWidth;
+    private int[] mPixels;
+    private final LuminanceAnalyzer mAnalyzer = new LuminanceAnalyzer();
+
+    @Setup
+    public void setUp() {
+        mWidth = height * 16 / 9;
+        mPixels = new int[mWidth * height];
+        Random random = new Random(0);
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = 0xff000000 | random.nextInt(0xffffff);
+        }
+    }
+
+    @Benchmark
+    public int calculateSampleSize() {
+        return ImageUtil.calculateSampleSize(4000 + height, height);
+    }
+
+    @Benchmark
+    public float analyzeLuminance() {
+        mAnalyzer.analyze(mPixels, mPixels.length);
+        return mAnalyzer.getMeanLuminance() + mAnalyzer.getLuminancePercentile(0.9f)
+                + mAnalyzer.getDominantColor();
+    }
+
+    /**
+     * Baseline for {@link #analyzeLuminance()}: the original {@code calculateDarkness}, reading
+     * the same pixels one {@code getPixel(x, y)} call at a time with float math. On a device each
+     * of those calls also crosses JNI, which this doesn't measure.
+     */
+    @Benchmark
+    public float legacyCalculateDarkness() {
+        int totalLum = 0;
+        int n = 0;
+        int x, y, color;
+        for (y = 0; y < height; y++) {
+            for (x = 0; x < mWidth; x++) {
+                ++n;
+                color = getPixel(x, y);
+                totalLum += (0.21f * Color.red(color)
+                        + 0.71f * Color.green(color)
+                        + 0.07f * Color.blue(color));
+            }
+        }
+
+        return (totalLum / n) / 256f;
+    }
+
+    private int getPixel(int x, int y) {
+        return mPixels[y * mWidth + x];
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.benchmark;
+
+import com.google.android.apps.muzei.util.MathUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the math helpers used on every frame and for every tile.
+ */
+@State(Scope.Thread)
+public class MathUtilBenchmark {
+    public float value = 0.37f;
+    public int size = 1919;
+
+    @Benchmark
+    public float interpolate() {
+        return MathUtil.interpolate(-1, 1, MathUtil.uninterpolate(0, 1,
+                MathUtil.constrain(0, 1, value)));
+    }
+
+    @Benchmark
+    public int roundAndDivide() {
+        return MathUtil.intDivideRoundUp(size, 512) + MathUtil.roundUpMult4(size)
+                + MathUtil.roundMult4(size) + MathUtil.floorEven(size);
+    }
+}
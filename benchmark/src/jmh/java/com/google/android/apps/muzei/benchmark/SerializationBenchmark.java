@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.benchmark;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+
+import com.google.android.apps.muzei.api.Artwork;
+import com.google.android.apps.muzei.api.MuzeiArtSource;
+import com.google.android.apps.muzei.api.UserCommand;
+import com.google.android.apps.muzei.api.internal.SourceState;
+import com.google.android.apps.muzei.wearable.ArtworkTransfer;
+import com.google.android.gms.wearable.DataMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+
+/**
+ * Benchmarks the conversions done when sources publish artwork, when their state is persisted
+ * and when artwork is sent to Android Wear.
+ */
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    private Artwork mArtwork;
+    private JSONObject mArtworkJson;
+    private SourceState mSourceState;
+    private JSONObject mSourceStateJson;
+    private com.google.android.apps.muzei.room.Artwork mRoomArtwork;
+    private DataMap mDataMap;
+
+    @Setup
+    public void setUp() throws JSONException {
+        Uri imageUri = Uri.parse(
+                "https://storage.googleapis.com/muzeifeaturedart/featured/2017/08/20/starry-night.jpg");
+        mArtwork = new Artwork.Builder()
+                .componentName(new ComponentName("com.google.android.apps.muzei",
+                        "com.google.android.apps.muzei.featuredart.FeaturedArtSource"))
+                .imageUri(imageUri)
+                .title("The Starry Night")
+                .byline("Vincent van Gogh, 1889.")
+                .attribution("wikiart.org")
+                .token("starry-night")
+                .viewIntent(new Intent(Intent.ACTION_VIEW,
+                        Uri.parse("http://www.wikiart.org/en/vincent-van-gogh/the-starry-night-1889")))
+                .dateAdded(new Date(0))
+                .build();
+        mArtworkJson = mArtwork.toJson();
+
+        mSourceState = new SourceState();
+        mSourceState.setCurrentArtwork(mArtwork);
+        mSourceState.setDescription("Featured art");
+        mSourceState.setWantsNetworkAvailable(true);
+        mSourceState.setUserCommands(
+                new UserCommand(MuzeiArtSource.BUILTIN_COMMAND_ID_NEXT_ARTWORK),
+                new UserCommand(1, "Share artwork"));
+        mSourceStateJson = mSourceState.toJson();
+
+        mRoomArtwork = new com.google.android.apps.muzei.room.Artwork();
+        mRoomArtwork.imageUri = imageUri;
+        mRoomArtwork.title = mArtwork.getTitle();
+        mRoomArtwork.byline = mArtwork.getByline();
+        mRoomArtwork.attribution = mArtwork.getAttribution();
+        mRoomArtwork.token = mArtwork.getToken();
+        mDataMap = ArtworkTransfer.toDataMap(mRoomArtwork);
+    }
+
+    @Benchmark
+    public JSONObject artworkToJson() throws JSONException {
+        return mArtwork.toJson();
+    }
+
+    @Benchmark
+    public Artwork artworkFromJson() {
+        return Artwork.fromJson(mArtworkJson);
+    }
+
+    @Benchmark
+    public String sourceStateToJson() throws JSONException {
+        // SourceState is persisted as a JSON string
+        return mSourceState.toJson().toString();
+    }
+
+    @Benchmark
+    public SourceState sourceStateReadJson() throws JSONException {
+        SourceState sourceState = new SourceState();
+        sourceState.readJson(mSourceStateJson);
+        return sourceState;
+    }
+
+    @Benchmark
+    public DataMap artworkTransferToDataMap() {
+        return ArtworkTransfer.toDataMap(mRoomArtwork);
+    }
+
+    @Benchmark
+    public com.google.android.apps.muzei.room.Artwork artworkTransferFromDataMap() {
+        return ArtworkTransfer.fromDataMap(mDataMap);
+    }
+}
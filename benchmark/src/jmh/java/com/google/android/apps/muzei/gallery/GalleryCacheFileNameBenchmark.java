@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.gallery;
+
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks naming the local copy of a chosen photo, as done by
+ * {@link GalleryProvider#getCacheFileForUri}. Lives in the gallery package as
+ * {@link GalleryCacheFileNames} is package private.
+ */
+@State(Scope.Thread)
+public class GalleryCacheFileNameBenchmark {
+    private final Uri mUri = Uri.parse("content://com.android.providers.media.documents/"
+            + "document/image%3A12345");
+
+    @Benchmark
+    public String documentUri() {
+        return GalleryCacheFileNames.getFileName(mUri);
+    }
+}
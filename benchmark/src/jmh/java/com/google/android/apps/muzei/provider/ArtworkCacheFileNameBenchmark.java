@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks naming the cached file of an artwork, as done by
+ * {@link MuzeiProvider#getCacheFileForArtworkUri} on every artwork file open. Lives in the
+ * provider package as {@link ArtworkCacheFileNames} is package private.
+ */
+@State(Scope.Thread)
+public class ArtworkCacheFileNameBenchmark {
+    private final Uri mImageUri = Uri.parse(
+            "https://storage.googleapis.com/muzeifeaturedart/featured/2017/08/20/starry-night.jpg");
+
+    @Benchmark
+    public String imageUri() {
+        return ArtworkCacheFileNames.getFileName(mImageUri, null);
+    }
+
+    @Benchmark
+    public String token() {
+        return ArtworkCacheFileNames.getFileName(null, "starry-night");
+    }
+}
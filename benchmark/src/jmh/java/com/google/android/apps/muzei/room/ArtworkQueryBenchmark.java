@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Benchmarks the hot artwork and sources queries on 10k artwork rows, with the version 7 schema
+ * and queries and with version 8, which adds indexes and limits the current artwork and source
+ * queries to one row. The tables are created from the schemas Room exported for each version in
+ * an in-memory SQLite database, and the plan of each query is printed once per fork.
+ */
+@State(Scope.Thread)
+public class ArtworkQueryBenchmark {
+    private static final int ARTWORK_ROWS = 10000;
+    private static final int SOURCES = 20;
+
+    @Param({"7", "8"})
+    public int schemaVersion;
+
+    private Connection mConnection;
+    private PreparedStatement mCurrentArtwork;
+    private PreparedStatement mArtworkForSourceId;
+    private PreparedStatement mMatchingByImageUri;
+    private PreparedStatement mMatchingByToken;
+    private PreparedStatement mCurrentSource;
+    private int mLookup;
+
+    @Setup
+    public void setUp() throws IOException, JSONException, SQLException {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        createTables();
+        insertRows();
+
+        String limit = schemaVersion >= 8 ? " LIMIT 1" : "";
+        mCurrentArtwork = prepare("SELECT * FROM artwork ORDER BY date_added DESC" + limit);
+        mArtworkForSourceId = prepare("SELECT artwork.* FROM artwork, sources "
+                + "WHERE artwork.sourceComponentName = sources.component_name "
+                + "AND sources._id = ? ORDER BY date_added DESC");
+        mMatchingByImageUri = prepare("SELECT * FROM artwork WHERE imageUri=? AND _id NOT IN (?)");
+        mMatchingByToken = prepare("SELECT * FROM artwork WHERE token=? AND _id NOT IN (?)");
+        mCurrentSource = prepare(
+                "SELECT * FROM sources WHERE selected=1 ORDER BY component_name" + limit);
+    }
+
+    private void createTables() throws IOException, JSONException, SQLException {
+        String path = "/com.google.android.apps.muzei.room.MuzeiDatabase/" + schemaVersion
+                + ".json";
+        JSONArray entities;
+        try (InputStream in = getClass().getResourceAsStream(path);
+             Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+            entities = new JSONObject(scanner.next())
+                    .getJSONObject("database")
+                    .getJSONArray("entities");
+        }
+        try (Statement statement = mConnection.createStatement()) {
+            for (int e = 0; e < entities.length(); e++) {
+                JSONObject entity = entities.getJSONObject(e);
+                String tableName = entity.getString("tableName");
+                statement.execute(entity.getString("createSql")
+                        .replace("${TABLE_NAME}", tableName));
+                JSONArray indices = entity.getJSONArray("indices");
+                for (int i = 0; i < indices.length(); i++) {
+                    statement.execute(indices.getJSONObject(i).getString("createSql")
+                            .replace("${TABLE_NAME}", tableName));
+                }
+            }
+        }
+    }
+
+    private void insertRows() throws SQLException {
+        mConnection.setAutoCommit(false);
+        try (PreparedStatement source = mConnection.prepareStatement(
+                "INSERT INTO sources (component_name, selected, network, "
+                        + "supports_next_artwork, commands) VALUES (?, ?, 0, 1, '[]')")) {
+            for (int s = 0; s < SOURCES; s++) {
+                source.setString(1, getSourceComponentName(s));
+                source.setInt(2, s == 0 ? 1 : 0);
+                source.executeUpdate();
+            }
+        }
+        String insert = "INSERT INTO artwork (sourceComponentName, imageUri, title, byline, "
+                + "token, metaFont, date_added" + (schemaVersion >= 5
+                ? ", width, height, rotation) VALUES (?, ?, ?, ?, ?, '', ?, 0, 0, 0)"
+                : ") VALUES (?, ?, ?, ?, ?, '', ?)");
+        Random random = new Random(0);
+        try (PreparedStatement artwork = mConnection.prepareStatement(insert)) {
+            for (int a = 0; a < ARTWORK_ROWS; a++) {
+                artwork.setString(1, getSourceComponentName(a % SOURCES));
+                artwork.setString(2, getImageUri(a));
+                artwork.setString(3, "Title " + a);
+                artwork.setString(4, "Byline " + a);
+                artwork.setString(5, getToken(a));
+                // Rows aren't added in date order, e.g. after restoring a backup
+                artwork.setLong(6, 1500000000000L + random.nextInt(ARTWORK_ROWS * 60) * 1000L);
+                artwork.executeUpdate();
+            }
+        }
+        mConnection.commit();
+        mConnection.setAutoCommit(true);
+    }
+
+    private static String getSourceComponentName(int source) {
+        return "com.example.muzei/.Source" + source;
+    }
+
+    private static String getImageUri(int artwork) {
+        return "https://example.com/artwork/" + artwork + ".jpg";
+    }
+
+    private static String getToken(int artwork) {
+        return "token-" + artwork;
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement explain = mConnection.prepareStatement(
+                "EXPLAIN QUERY PLAN " + sql)) {
+            // Any value works for the plan
+            for (int p = 1; p <= explain.getParameterMetaData().getParameterCount(); p++) {
+                explain.setInt(p, 1);
+            }
+            try (ResultSet resultSet = explain.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.append("\n    ").append(resultSet.getString("detail"));
+                }
+            }
+        }
+        System.out.println("Version " + schemaVersion + ": " + sql + plan);
+        return mConnection.prepareStatement(sql);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        mConnection.close();
+    }
+
+    /**
+     * Reads every column of every row, as Room does when mapping the results. Room only maps
+     * the first row of queries returning a single object.
+     */
+    private static int read(PreparedStatement statement, boolean firstRowOnly, Blackhole blackhole)
+            throws SQLException {
+        int rows = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            int columns = resultSet.getMetaData().getColumnCount();
+            while (resultSet.next()) {
+                for (int c = 1; c <= columns; c++) {
+                    blackhole.consume(resultSet.getObject(c));
+                }
+                rows++;
+                if (firstRowOnly) {
+                    break;
+                }
+            }
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public int getCurrentArtwork(Blackhole blackhole) throws SQLException {
+        return read(mCurrentArtwork, true, blackhole);
+    }
+
+    @Benchmark
+    public int getArtworkForSourceId(Blackhole blackhole) throws SQLException {
+        mArtworkForSourceId.setLong(1, 1 + mLookup++ % SOURCES);
+        return read(mArtworkForSourceId, false, blackhole);
+    }
+
+    @Benchmark
+    public int findMatchingByImageUri(Blackhole blackhole) throws SQLException {
+        int artwork = mLookup++ % ARTWORK_ROWS;
+        mMatchingByImageUri.setString(1, getImageUri(artwork));
+        mMatchingByImageUri.setLong(2, artwork + 1);
+        return read(mMatchingByImageUri, false, blackhole);
+    }
+
+    @Benchmark
+    public int findMatchingByToken(Blackhole blackhole) throws SQLException {
+        int artwork = mLookup++ % ARTWORK_ROWS;
+        mMatchingByToken.setString(1, getToken(artwork));
+        mMatchingByToken.setLong(2, artwork + 1);
+        return read(mMatchingByToken, false, blackhole);
+    }
+
+    @Benchmark
+    public int getCurrentSource(Blackhole blackhole) throws SQLException {
+        return read(mCurrentSource, true, blackhole);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.graphics.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.ParseException;
+
+/**
+ * Benchmarks parsing the logo glyphs, as done each time the animated logo views are resized.
+ * Lives in SvgPathParser's package as the parser is package private.
+ */
+@State(Scope.Thread)
+public class SvgPathParserBenchmark {
+    private final SvgPathParser mParser = new SvgPathParser() {
+        @Override
+        protected float transformX(float x) {
+            return x * 2;
+        }
+
+        @Override
+        protected float transformY(float y) {
+            return y * 2;
+        }
+    };
+
+    @Benchmark
+    public int parseLogoGlyphs() throws ParseException {
+        int segmentCount = 0;
+        for (String glyph : LogoPaths.GLYPHS) {
+            Path path = mParser.parsePath(glyph);
+            segmentCount += path.getSegmentCount();
+        }
+        return segmentCount;
+    }
+}
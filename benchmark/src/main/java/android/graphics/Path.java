@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+/**
+ * JVM fake of the framework's Path, whose real implementation is native, so that
+ * SvgPathParser can be benchmarked. It only counts the segments added so the parse isn't
+ * optimized away; Skia's cost of building the path is not measured.
+ */
+public class Path {
+    public enum FillType {
+        WINDING,
+        EVEN_ODD,
+        INVERSE_WINDING,
+        INVERSE_EVEN_ODD
+    }
+
+    private FillType mFillType = FillType.WINDING;
+    private int mSegmentCount;
+
+    public void setFillType(FillType fillType) {
+        mFillType = fillType;
+    }
+
+    public FillType getFillType() {
+        return mFillType;
+    }
+
+    public void moveTo(float x, float y) {
+        mSegmentCount++;
+    }
+
+    public void lineTo(float x, float y) {
+        mSegmentCount++;
+    }
+
+    public void quadTo(float x1, float y1, float x2, float y2) {
+        mSegmentCount++;
+    }
+
+    public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+        mSegmentCount++;
+    }
+
+    public void close() {
+        mSegmentCount++;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.wearable;
+
+import android.os.Bundle;
+
+/**
+ * JVM fake of Play services' DataMap, which is only shipped as an Android library, so that
+ * ArtworkTransfer can be benchmarked. It holds on to a copy of the Bundle; the cost of Play
+ * services' own conversion is not measured.
+ */
+public class DataMap {
+    private final Bundle mBundle;
+
+    private DataMap(Bundle bundle) {
+        mBundle = bundle;
+    }
+
+    public static DataMap fromBundle(Bundle bundle) {
+        return new DataMap(new Bundle(bundle));
+    }
+
+    public Bundle toBundle() {
+        return new Bundle(mBundle);
+    }
+}
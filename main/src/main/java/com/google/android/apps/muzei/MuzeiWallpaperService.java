@@ -40,7 +40,9 @@ import com.google.android.apps.muzei.event.WallpaperSizeChangedEvent;
 import com.google.android.apps.muzei.render.MuzeiBlurRenderer;
 import com.google.android.apps.muzei.render.RealRenderController;
 import com.google.android.apps.muzei.render.RenderController;
+import com.google.android.apps.muzei.render.RenderMetrics;
 import com.google.android.apps.muzei.shortcuts.ArtworkInfoShortcutController;
+import com.google.android.apps.muzei.util.IoExecutor;
 import com.google.android.apps.muzei.wallpaper.LockscreenObserver;
 import com.google.android.apps.muzei.wallpaper.NetworkChangeObserver;
 import com.google.android.apps.muzei.wallpaper.NotificationUpdater;
@@ -53,6 +55,9 @@ import net.rbgrn.android.glwallpaperservice.GLWallpaperService;
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class MuzeiWallpaperService extends GLWallpaperService implements LifecycleOwner {
     private LifecycleRegistry mLifecycle;
     private BroadcastReceiver mUnlockReceiver;
@@ -105,6 +110,18 @@ public class MuzeiWallpaperService extends GLWallpaperService implements Lifecyc
         super.onDestroy();
     }
 
+    /**
+     * Prints render and background I/O metrics, accessible with
+     * {@code adb shell dumpsys activity service
+     * net.nurik.roman.muzei/com.google.android.apps.muzei.MuzeiWallpaperService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        RenderMetrics.getInstance().dump(writer);
+        IoExecutor.getInstance().dump(writer);
+    }
+
     public class MuzeiWallpaperEngine extends GLEngine implements
             LifecycleOwner,
             LifecycleObserver,
@@ -228,6 +245,15 @@ public class MuzeiWallpaperService extends GLWallpaperService implements Lifecyc
         @Override
         public void onVisibilityChanged(boolean visible) {
             mVisible = visible;
+            if (visible) {
+                // Start restoring anything released while idle before the user can unblur it
+                queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRenderer.exitIdle();
+                    }
+                });
+            }
             mRenderController.setVisible(visible);
         }
 
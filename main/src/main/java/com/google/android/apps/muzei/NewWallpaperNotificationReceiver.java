@@ -23,12 +23,10 @@ import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.Observer;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -42,14 +40,13 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.MuzeiArtSource;
-import com.google.android.apps.muzei.api.MuzeiContract;
 import com.google.android.apps.muzei.api.UserCommand;
 import com.google.android.apps.muzei.event.ArtDetailOpenedClosedEvent;
-import com.google.android.apps.muzei.render.ImageUtil;
 import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.ArtworkSource;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
+import com.google.android.apps.muzei.util.ArtworkBitmapCache;
 
 import net.nurik.roman.muzei.R;
 
@@ -160,7 +157,6 @@ public class NewWallpaperNotificationReceiver extends BroadcastReceiver {
             return;
         }
 
-        ContentResolver contentResolver = context.getContentResolver();
         ArtworkSource artworkSource = MuzeiDatabase.getInstance(context)
                 .artworkDao()
                 .getCurrentArtworkWithSourceBlocking();
@@ -191,25 +187,15 @@ public class NewWallpaperNotificationReceiver extends BroadcastReceiver {
         Bitmap largeIcon;
         Bitmap background;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(contentResolver.openInputStream(
-                    MuzeiContract.Artwork.CONTENT_URI), null, options);
-            int width = options.outWidth;
-            int height = options.outHeight;
-            int shortestLength = Math.min(width, height);
-            options.inJustDecodeBounds = false;
+            ArtworkBitmapCache cache = ArtworkBitmapCache.getInstance(context);
             int largeIconHeight = context.getResources()
                     .getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
-            options.inSampleSize = ImageUtil.calculateSampleSize(shortestLength, largeIconHeight);
-            largeIcon = BitmapFactory.decodeStream(contentResolver.openInputStream(
-                    MuzeiContract.Artwork.CONTENT_URI), null, options);
+            largeIcon = cache.get(artworkSource.artwork, largeIconHeight, largeIconHeight,
+                    ArtworkBitmapCache.TRANSFORM_NONE);
 
             // Use the suggested 400x400 for Android Wear background images per
             // http://developer.android.com/training/wearables/notifications/creating.html#AddWearableFeatures
-            options.inSampleSize = ImageUtil.calculateSampleSize(height, 400);
-            background = BitmapFactory.decodeStream(contentResolver.openInputStream(
-                    MuzeiContract.Artwork.CONTENT_URI), null, options);
+            background = cache.get(artworkSource.artwork, 0, 400, ArtworkBitmapCache.TRANSFORM_NONE);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Unable to read artwork to show notification", e);
             return;
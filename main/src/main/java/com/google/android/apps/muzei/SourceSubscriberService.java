@@ -26,6 +26,7 @@ import android.util.Log;
 import com.google.android.apps.muzei.api.MuzeiArtSource;
 import com.google.android.apps.muzei.api.UserCommand;
 import com.google.android.apps.muzei.api.internal.SourceState;
+import com.google.android.apps.muzei.provider.ArtworkBlobStore;
 import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
@@ -93,8 +94,6 @@ public class SourceSubscriberService extends IntentService {
         com.google.android.apps.muzei.api.Artwork currentArtwork = state.getCurrentArtwork();
         if (currentArtwork != null) {
             MuzeiDatabase database = MuzeiDatabase.getInstance(this);
-            database.beginTransaction();
-            database.sourceDao().update(source);
             Artwork artwork = new Artwork();
             artwork.sourceComponentName = source.componentName;
             artwork.imageUri = currentArtwork.getImageUri();
@@ -117,13 +116,20 @@ public class SourceSubscriberService extends IntentService {
                 artwork.viewIntent = null;
             }
 
-            database.artworkDao().insert(this, artwork);
+            // The insert takes the blob store lock, which must never be taken inside a transaction
+            synchronized (ArtworkBlobStore.getLock()) {
+                database.beginTransaction();
+                try {
+                    database.sourceDao().update(source);
+                    database.artworkDao().insert(this, artwork);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
 
             // Download the artwork contained from the newly published SourceState
             startService(TaskQueueService.getDownloadCurrentArtworkIntent(this));
-
-            database.setTransactionSuccessful();
-            database.endTransaction();
         }
     }
 }
@@ -38,11 +38,26 @@ public class BitmapRegionLoader {
     private InputStream mInputStream;
     private volatile BitmapRegionDecoder mBitmapRegionDecoder;
     private Matrix mRotateMatrix;
+    private String mCacheKey;
+    private InputStreamOpener mInputStreamOpener;
 
     public static BitmapRegionLoader newInstance(InputStream in) throws IOException {
         return newInstance(in, 0);
     }
 
+    /**
+     * Creates a loader over a stream that can be opened multiple times, allowing
+     * {@link #duplicate()} to create more loaders over the same image.
+     */
+    public static BitmapRegionLoader newInstance(InputStreamOpener opener, int rotation)
+            throws IOException {
+        BitmapRegionLoader loader = newInstance(opener.open(), rotation);
+        if (loader != null) {
+            loader.mInputStreamOpener = opener;
+        }
+        return loader;
+    }
+
     public static BitmapRegionLoader newInstance(InputStream in, int rotation) throws IOException {
         if (in == null) {
             return null;
@@ -76,9 +91,13 @@ public class BitmapRegionLoader {
     /**
      * Key difference, aside from support for rotation, from
      * {@link BitmapRegionDecoder#decodeRegion(Rect, Options)} in this implementation is that even
-     * if <code>inBitmap</code> is given, a sub-bitmap might be returned.
+     * if <code>inBitmap</code> is given, a sub-bitmap might be returned. Returns null once the
+     * loader has been destroyed.
      */
     public synchronized Bitmap decodeRegion(Rect rect, Options options) {
+        if (mBitmapRegionDecoder == null) {
+            return null;
+        }
         int unsampledInBitmapWidth = -1;
         int unsampledInBitmapHeight = -1;
         int sampleSize = Math.max(1, options != null ? options.inSampleSize : 1);
@@ -145,6 +164,37 @@ public class BitmapRegionLoader {
         return bitmap;
     }
 
+    /**
+     * Sets a key uniquely identifying the image being loaded, allowing data derived from it
+     * to be cached across loads.
+     */
+    public void setCacheKey(String cacheKey) {
+        mCacheKey = cacheKey;
+    }
+
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    /**
+     * Opens a new, independent loader over the same image so that regions can be decoded
+     * concurrently. Returns null if the image's stream can't be reopened.
+     */
+    public BitmapRegionLoader duplicate() {
+        if (mInputStreamOpener == null) {
+            return null;
+        }
+        try {
+            BitmapRegionLoader loader = newInstance(mInputStreamOpener, mRotation);
+            if (loader != null) {
+                loader.mCacheKey = mCacheKey;
+            }
+            return loader;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public synchronized int getWidth() {
         return (mRotation == 90 || mRotation == 270) ? mOriginalHeight : mOriginalWidth;
     }
@@ -154,6 +204,9 @@ public class BitmapRegionLoader {
     }
 
     public synchronized void destroy() {
+        if (mBitmapRegionDecoder == null) {
+            return;
+        }
         mBitmapRegionDecoder.recycle();
         mBitmapRegionDecoder = null;
         try {
@@ -161,4 +214,8 @@ public class BitmapRegionLoader {
         } catch (IOException ignored) {
         }
     }
+
+    public interface InputStreamOpener {
+        InputStream open() throws IOException;
+    }
 }
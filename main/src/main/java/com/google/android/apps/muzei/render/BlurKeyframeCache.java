@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Persistent cache of the blurred keyframes and dim amount computed by
+ * {@link MuzeiBlurRenderer} for an artwork, so that reloading the same artwork with the same
+ * settings (e.g. after the process is killed) skips the darkness calculation and all blurring.
+ *
+ * <p>Each entry is a single binary file under the app's cache directory: a small header followed
+ * by the keyframes in {@link RawTileFormat}. Files are memory mapped when read so keyframes can
+ * be uploaded to textures without copying their pixels onto the Java heap. Files are evicted
+ * least recently used first once their total size exceeds {@link #MAX_SIZE_BYTES}.
+ */
+class BlurKeyframeCache {
+    private static final String TAG = "BlurKeyframeCache";
+
+    private static final String DIRECTORY_NAME = "blur_keyframes";
+    private static final String FILE_EXTENSION = ".kf";
+    private static final int MAGIC = 0x4d424b46; // MBKF
+    // Version 3 stores keyframes as RGB 565 rather than RGBA 8888. The format is recorded in
+    // each entry, but older entries are dropped so they don't stay resident at twice the size.
+    private static final int VERSION = 3;
+    private static final int HEADER_INTS = 9;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long MAX_SIZE_BYTES = 12 * 1024 * 1024;
+
+    static class Entry {
+        final int dimAmount;
+        final int width;
+        final int height;
+        final int tileSize;
+        final int format;
+        /**
+         * Tiles of each keyframe, laid out as described by {@link RawTileFormat}.
+         */
+        final ByteBuffer[] keyframes;
+
+        Entry(int dimAmount, int width, int height, int tileSize, int format,
+                ByteBuffer[] keyframes) {
+            this.dimAmount = dimAmount;
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.format = format;
+            this.keyframes = keyframes;
+        }
+    }
+
+    private final File mDirectory;
+    private final ExecutorService mWriteExecutorService = Executors.newSingleThreadExecutor();
+
+    BlurKeyframeCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Builds a cache key from everything that affects the contents of an {@link Entry}.
+     */
+    static String createKey(String imageKey, int screenHeight, int blurPixels,
+            int blurredSampleSize, int grey, int maxDim, int keyframes) {
+        return imageKey + "|" + screenHeight + "|" + blurPixels + "|" + blurredSampleSize
+                + "|" + grey + "|" + maxDim + "|" + keyframes;
+    }
+
+    /**
+     * Returns the cached entry for the given key, or null if there is none. Performs disk I/O.
+     */
+    Entry get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // The mapping stays valid after the channel is closed. Page it in now so that
+            // uploading the keyframes later doesn't block on disk I/O.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.load();
+            if (buffer.remaining() < HEADER_INTS * 4
+                    || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int dimAmount = buffer.getInt();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int tileSize = buffer.getInt();
+            int format = buffer.getInt();
+            ByteBuffer[] keyframes = new ByteBuffer[buffer.getInt()];
+            byte[] keyBytes = new byte[buffer.getInt()];
+            if (buffer.remaining() < keyBytes.length) {
+                return null;
+            }
+            buffer.get(keyBytes);
+            if (!key.equals(new String(keyBytes, UTF_8))) {
+                // Hash collision with another key
+                return null;
+            }
+
+            int imageBytes = keyframes.length > 0
+                    ? RawTileFormat.imageBytes(width, height, tileSize, format)
+                    : 0;
+            if (buffer.remaining() != imageBytes * keyframes.length) {
+                throw new IOException("Unexpected size for " + file.getName());
+            }
+            for (int f = 0; f < keyframes.length; f++) {
+                ByteBuffer keyframe = buffer.slice();
+                keyframe.limit(imageBytes);
+                keyframes[f] = keyframe;
+                buffer.position(buffer.position() + imageBytes);
+            }
+            // Mark as recently used
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(dimAmount, width, height, tileSize, format, keyframes);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached keyframes", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously writes the given keyframes to disk, evicting older entries if needed.
+     * Keyframes are given as tiles laid out as described by {@link RawTileFormat}, from each
+     * buffer's position to its limit. The buffers must not be modified afterwards. Does nothing
+     * once the cache has been destroyed.
+     */
+    void put(final String key, final int dimAmount, final int width, final int height,
+            final int tileSize, final int format, final ByteBuffer[] keyframes) {
+        try {
+            write(key, dimAmount, width, height, tileSize, format, keyframes);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Not caching keyframes after the cache was destroyed");
+        }
+    }
+
+    private void write(final String key, final int dimAmount, final int width, final int height,
+            final int tileSize, final int format, final ByteBuffer[] keyframes) {
+        mWriteExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                    return;
+                }
+                File file = getFile(key);
+                File tempFile = new File(mDirectory, file.getName() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(tempFile);
+                     FileChannel channel = out.getChannel()) {
+                    byte[] keyBytes = key.getBytes(UTF_8);
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * 4 + keyBytes.length);
+                    header.putInt(MAGIC)
+                            .putInt(VERSION)
+                            .putInt(dimAmount)
+                            .putInt(width)
+                            .putInt(height)
+                            .putInt(tileSize)
+                            .putInt(format)
+                            .putInt(keyframes.length)
+                            .putInt(keyBytes.length)
+                            .put(keyBytes);
+                    header.flip();
+                    writeFully(channel, header);
+
+                    for (ByteBuffer keyframe : keyframes) {
+                        // Write from a duplicate so the caller's buffer position is unaffected
+                        writeFully(channel, keyframe.duplicate());
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write cached keyframes", e);
+                    tempFile.delete();
+                    return;
+                }
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                    return;
+                }
+                trimToSize();
+            }
+        });
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    void destroy() {
+        // Let any pending writes finish
+        mWriteExecutorService.shutdown();
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, Integer.toHexString(key.hashCode()) + FILE_EXTENSION);
+    }
+
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= MAX_SIZE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (totalSize <= MAX_SIZE_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.os.Handler;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 public class DemoRenderController extends RenderController {
     private static final String TAG = "DemoRenderController";
@@ -92,7 +93,12 @@ public class DemoRenderController extends RenderController {
     @Override
     protected BitmapRegionLoader openDownloadedCurrentArtwork(boolean forceReload) {
         try {
-            return BitmapRegionLoader.newInstance(mContext.getAssets().open("starrynight.jpg"));
+            return BitmapRegionLoader.newInstance(new BitmapRegionLoader.InputStreamOpener() {
+                @Override
+                public InputStream open() throws IOException {
+                    return mContext.getAssets().open("starrynight.jpg");
+                }
+            }, 0);
         } catch (IOException e) {
             Log.e(TAG, "Error opening demo image.", e);
             return null;
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import com.google.android.apps.muzei.util.BoxBlur;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A downsampled picture that is blurred on the GPU at draw time, using a separable two pass
+ * Gaussian shader that renders into a pair of framebuffers. The blurred result is only
+ * recomputed when the blur radius changes.
+ *
+ * @see GaussianKernel
+ */
+class GLBlurredPicture {
+    private static final String VERTEX_SHADER_CODE = "" +
+            "attribute vec4 aPosition;" +
+            "attribute vec2 aTexCoords;" +
+            "varying vec2 vTexCoords;" +
+            "void main(){" +
+            "  vTexCoords = aTexCoords;" +
+            "  gl_Position = aPosition;" +
+            "}";
+
+    // Keep in sync with GaussianKernel
+    private static final String FRAGMENT_SHADER_CODE = "" +
+            "precision mediump float;" +
+            "uniform sampler2D uTexture;" +
+            "uniform vec2 uTexelStep;" +
+            "uniform float uSigma;" +
+            "varying vec2 vTexCoords;" +
+            "const int PAIRS = " + GaussianKernel.PAIRS + ";" +
+            "float weight(float distance){" +
+            "  return exp(-distance * distance / (2.0 * uSigma * uSigma));" +
+            "}" +
+            "void main(){" +
+            "  vec4 sum = texture2D(uTexture, vTexCoords);" +
+            "  float total = 1.0;" +
+            "  for (int i = 0; i < PAIRS; i++) {" +
+            "    float near = float(2 * i + 1);" +
+            "    float nearWeight = weight(near);" +
+            "    float farWeight = weight(near + 1.0);" +
+            "    float w = nearWeight + farWeight;" +
+            "    if (w < " + GaussianKernel.MIN_WEIGHT + ") {" +
+            "      break;" +
+            "    }" +
+            "    vec2 offset = uTexelStep * (near * nearWeight + (near + 1.0) * farWeight) / w;" +
+            "    sum += w * (texture2D(uTexture, vTexCoords + offset)" +
+            "        + texture2D(uTexture, vTexCoords - offset));" +
+            "    total += 2.0 * w;" +
+            "  }" +
+            "  gl_FragColor = vec4(sum.rgb / total, 1.0);" +
+            "}";
+
+    private static final int COORDS_PER_VERTEX = 2;
+    private static final int VERTEX_STRIDE_BYTES = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
+    private static final int VERTICES = 6;
+
+    // Full viewport quad, mapping texture coordinates straight through so that the
+    // framebuffer contents have the same orientation as the source texture
+    private static final float[] QUAD_VERTICES = {
+            -1, -1,
+            -1, 1,
+            1, 1,
+
+            -1, -1,
+            1, 1,
+            1, -1,
+    };
+
+    private static final float[] QUAD_TEXTURE_VERTICES = {
+            0, 0,
+            0, 1,
+            1, 1,
+
+            0, 0,
+            1, 1,
+            1, 0,
+    };
+
+    private static int sProgramHandle;
+    private static int sAttribPositionHandle;
+    private static int sAttribTextureCoordsHandle;
+    private static int sUniformTextureHandle;
+    private static int sUniformTexelStepHandle;
+    private static int sUniformSigmaHandle;
+
+    private static final FloatBuffer sVertexBuffer = GLUtil.asFloatBuffer(QUAD_VERTICES);
+    private static final FloatBuffer sTextureCoordsBuffer
+            = GLUtil.asFloatBuffer(QUAD_TEXTURE_VERTICES);
+
+    private boolean mHasContent = false;
+    private int mWidth;
+    private int mHeight;
+    private int mSourceTextureHandle;
+    private int[] mFramebufferHandles;
+    private int[] mFramebufferTextureHandles;
+    private GLPicture mOutputPicture;
+    private long mTextureBytes;
+    private float mSigma = -1;
+    private final int[] mSavedViewport = new int[4];
+
+    public static void initGl() {
+        int vertexShaderHandle = GLUtil.loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_CODE);
+        int fragShaderHandle = GLUtil.loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_CODE);
+
+        sProgramHandle = GLUtil.createAndLinkProgram(vertexShaderHandle, fragShaderHandle, null);
+        sAttribPositionHandle = GLES20.glGetAttribLocation(sProgramHandle, "aPosition");
+        sAttribTextureCoordsHandle = GLES20.glGetAttribLocation(sProgramHandle, "aTexCoords");
+        sUniformTextureHandle = GLES20.glGetUniformLocation(sProgramHandle, "uTexture");
+        sUniformTexelStepHandle = GLES20.glGetUniformLocation(sProgramHandle, "uTexelStep");
+        sUniformSigmaHandle = GLES20.glGetUniformLocation(sProgramHandle, "uSigma");
+    }
+
+    public GLBlurredPicture(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        mHasContent = true;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        mSourceTextureHandle = GLUtil.loadTexture(bitmap);
+
+        mFramebufferHandles = new int[2];
+        mFramebufferTextureHandles = new int[2];
+        GLES20.glGenFramebuffers(2, mFramebufferHandles, 0);
+        for (int i = 0; i < 2; i++) {
+            mFramebufferTextureHandles[i] = GLUtil.createTexture(mWidth, mHeight);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferHandles[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mFramebufferTextureHandles[i], 0);
+            GLUtil.checkGlError("glFramebufferTexture2D");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // The output picture takes ownership of the final framebuffer's texture
+        mOutputPicture = new GLPicture(mFramebufferTextureHandles[1], mWidth, mHeight);
+        mTextureBytes = bitmap.getByteCount() + mWidth * mHeight * 4;
+        RenderMetrics.getInstance().addTextureBytes(mTextureBytes);
+    }
+
+    /**
+     * Returns a picture containing this picture blurred by the given radius (in pixels of the
+     * downsampled bitmap). Must be called on the GL thread, outside of any other framebuffer.
+     */
+    public GLPicture blur(float radius) {
+        if (!mHasContent) {
+            return null;
+        }
+
+        float sigma = BoxBlur.sigmaForRadius(radius);
+        if (sigma == mSigma) {
+            return mOutputPicture;
+        }
+        mSigma = sigma;
+
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        GLES20.glUseProgram(sProgramHandle);
+        GLES20.glEnableVertexAttribArray(sAttribPositionHandle);
+        GLES20.glVertexAttribPointer(sAttribPositionHandle,
+                COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE_BYTES, sVertexBuffer);
+        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
+        GLES20.glVertexAttribPointer(sAttribTextureCoordsHandle,
+                COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE_BYTES, sTextureCoordsBuffer);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(sUniformTextureHandle, 0);
+        GLES20.glUniform1f(sUniformSigmaHandle, sigma);
+
+        // Horizontal pass from the source into the first framebuffer
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferHandles[0]);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mSourceTextureHandle);
+        GLES20.glUniform2f(sUniformTexelStepHandle, 1f / mWidth, 0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, VERTICES);
+
+        // Vertical pass from the first framebuffer into the second
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferHandles[1]);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFramebufferTextureHandles[0]);
+        GLES20.glUniform2f(sUniformTexelStepHandle, 0, 1f / mHeight);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, VERTICES);
+        GLUtil.checkGlError("Blur passes");
+
+        GLES20.glDisableVertexAttribArray(sAttribPositionHandle);
+        GLES20.glDisableVertexAttribArray(sAttribTextureCoordsHandle);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1],
+                mSavedViewport[2], mSavedViewport[3]);
+        return mOutputPicture;
+    }
+
+    public void destroy() {
+        if (!mHasContent) {
+            return;
+        }
+        mHasContent = false;
+        GLES20.glDeleteFramebuffers(mFramebufferHandles.length, mFramebufferHandles, 0);
+        GLES20.glDeleteTextures(2, new int[] {
+                mSourceTextureHandle, mFramebufferTextureHandles[0]}, 0);
+        mOutputPicture.destroy();
+        RenderMetrics.getInstance().addTextureBytes(-mTextureBytes);
+        GLUtil.checkGlError("Destroy blurred picture");
+    }
+}
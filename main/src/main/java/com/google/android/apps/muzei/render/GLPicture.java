@@ -17,15 +17,22 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Rect;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
+import android.util.Log;
 
 import com.google.android.apps.muzei.util.MathUtil;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 class GLPicture {
+    private static final String TAG = "GLPicture";
+
     private static final String VERTEX_SHADER_CODE = "" +
             // This matrix member variable provides a hook to manipulate
             // the coordinates of the objects that use this vertex shader
@@ -42,21 +49,22 @@ class GLPicture {
             "precision mediump float;" +
             "uniform sampler2D uTexture;" +
             "uniform float uAlpha;" +
+            "uniform float uDesaturate;" +
             "varying vec2 vTexCoords;" +
             "void main(){" +
-            "  gl_FragColor = texture2D(uTexture, vTexCoords);" +
-            "  gl_FragColor.a = uAlpha;" +
+            "  vec4 color = texture2D(uTexture, vTexCoords);" +
+            "  float lum = dot(color.rgb, vec3(0.299, 0.587, 0.114));" +
+            "  gl_FragColor = vec4(mix(color.rgb, vec3(lum), uDesaturate), uAlpha);" +
             "}";
 
-    // number of coordinates per vertex in this array
-    private static final int COORDS_PER_VERTEX = 3;
-    private static final int VERTEX_STRIDE_BYTES = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
-    private static final int VERTICES = 6; // TL, BL, BR, TL, BR, TR
-
-    // S, T (or X, Y)
+    // X, Y followed by S, T for each vertex, interleaved in the vertex buffer
+    private static final int COORDS_PER_VERTEX = 2;
     private static final int COORDS_PER_TEXTURE_VERTEX = 2;
-    private static final int TEXTURE_VERTEX_STRIDE_BYTES = COORDS_PER_TEXTURE_VERTEX
+    private static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + COORDS_PER_TEXTURE_VERTEX;
+    private static final int VERTEX_STRIDE_BYTES = FLOATS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
+    private static final int TEXTURE_COORDS_OFFSET_BYTES = COORDS_PER_VERTEX
             * GLUtil.BYTES_PER_FLOAT;
+    private static final int VERTICES = 6; // TL, BL, BR, TL, BR, TR
 
     private static final float[] SQUARE_TEXTURE_VERTICES = {
             0, 0, // top left
@@ -70,16 +78,17 @@ class GLPicture {
 
     private boolean mHasContent = false;
 
-    private float[] mVertices = new float[COORDS_PER_VERTEX * VERTICES];
-    private FloatBuffer mVertexBuffer;
-    private FloatBuffer mTextureCoordsBuffer;
+    // Static mesh with two triangles per tile, see createVertexBuffer()
+    private int mVertexBufferHandle;
 
     private static int sMaxTextureSize;
+    private static boolean sEtc1Supported;
 
     private static int sProgramHandle;
     private static int sAttribPositionHandle;
     private static int sAttribTextureCoordsHandle;
     private static int sUniformAlphaHandle;
+    private static int sUniformDesaturateHandle;
     private static int sUniformTextureHandle;
     private static int sUniformMVPMatrixHandle;
 
@@ -89,6 +98,18 @@ class GLPicture {
     private int mHeight = 0;
     private int mTileSize = sMaxTextureSize;
     private int[] mTextureHandles;
+    private long mTextureBytes;
+
+    // Progressive loading state, only set while tiles are still being loaded
+    private ParallelTileDecoder mTileDecoder;
+    private List<Future<ParallelTileDecoder.Tile[]>> mPendingRows;
+    private int mNextRow;
+    private int mNextCol;
+    private ParallelTileDecoder.Tile[] mCurrentRowTiles;
+    private int mSampleSize;
+    private int mOriginalWidth;
+    private int mOriginalHeight;
+    private GLPicture mPlaceholder;
 
     public static void initGl() {
         // Initialize shaders and create/link program
@@ -101,35 +122,56 @@ class GLPicture {
         sUniformMVPMatrixHandle = GLES20.glGetUniformLocation(sProgramHandle, "uMVPMatrix");
         sUniformTextureHandle = GLES20.glGetUniformLocation(sProgramHandle, "uTexture");
         sUniformAlphaHandle = GLES20.glGetUniformLocation(sProgramHandle, "uAlpha");
+        sUniformDesaturateHandle = GLES20.glGetUniformLocation(sProgramHandle, "uDesaturate");
 
         // Compute max texture size
         int[] maxTextureSize = new int[1];
         GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
         sMaxTextureSize = maxTextureSize[0];
+
+        sEtc1Supported = ETC1Util.isETC1Supported();
+    }
+
+    static int getMaxTextureSize() {
+        return sMaxTextureSize;
     }
 
-    public GLPicture(BitmapRegionLoader bitmapRegionLoader, int maxHeight) {
-        if (bitmapRegionLoader == null || maxHeight == 0) {
+    static boolean isEtc1Supported() {
+        return sEtc1Supported;
+    }
+
+    static int getTileSize() {
+        return Math.min(512, sMaxTextureSize);
+    }
+
+    /**
+     * Starts decoding tiles in the background without uploading any of them. Tiles are uploaded
+     * as they finish decoding by calling {@link #loadTiles(int)}, and until then the matching
+     * region of {@code placeholder}, if any, is drawn in their place. The placeholder must be a
+     * single tile picture of the same image and must outlive the load. The picture takes
+     * ownership of the tile decoder.
+     */
+    GLPicture(ParallelTileDecoder tileDecoder, int maxHeight, GLPicture placeholder) {
+        if (tileDecoder == null) {
+            return;
+        } else if (maxHeight == 0) {
+            tileDecoder.destroy();
             return;
         }
 
         mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
-
-        int originalWidth = bitmapRegionLoader.getWidth();
-        int originalHeight = bitmapRegionLoader.getHeight();
-        int sampleSize = 1;
-        while (originalHeight / (sampleSize << 1) > maxHeight) {
-            sampleSize <<= 1;
+
+        mOriginalWidth = tileDecoder.getWidth();
+        mOriginalHeight = tileDecoder.getHeight();
+        mSampleSize = 1;
+        while (mOriginalHeight / (mSampleSize << 1) > maxHeight) {
+            mSampleSize <<= 1;
         }
 
-        mWidth = originalWidth / sampleSize;
-        mHeight = originalHeight / sampleSize;
+        mWidth = mOriginalWidth / mSampleSize;
+        mHeight = mOriginalHeight / mSampleSize;
 
-        mTileSize = Math.min(512, sMaxTextureSize);
-        int unsampledTileSize = mTileSize * sampleSize;
-        int leftoverHeight = originalHeight % unsampledTileSize;
+        mTileSize = getTileSize();
 
         // Load m x n textures
         mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
@@ -137,32 +179,117 @@ class GLPicture {
 
         mTextureHandles = new int[mCols * mRows];
 
-        Bitmap tileBitmap = Bitmap.createBitmap(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
-        Rect rect = new Rect();
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = sampleSize;
-        options.inBitmap = tileBitmap;
-        for (int y = 0; y < mRows; y++) {
+        if (placeholder != null && placeholder.mTextureHandles != null
+                && placeholder.mTextureHandles.length == 1) {
+            mPlaceholder = placeholder;
+        }
+        createVertexBuffer();
+
+        // Decode rows of tiles in parallel so they can be uploaded in order as they finish
+        mTileDecoder = tileDecoder;
+        mPendingRows = new ArrayList<>(mRows);
+        queueRows();
+    }
+
+    /**
+     * Returns the sample size the image was decoded at, or 1 if the picture wasn't decoded from
+     * a {@link BitmapRegionLoader}.
+     */
+    int getSampleSize() {
+        return Math.max(1, mSampleSize);
+    }
+
+    /**
+     * Returns whether there are tiles that have not been uploaded yet.
+     */
+    boolean isLoading() {
+        return mTileDecoder != null;
+    }
+
+    /**
+     * Uploads tiles in order as long as they have finished decoding, until at least
+     * {@code budgetBytes} have been uploaded. Never blocks. Returns the number of bytes
+     * uploaded.
+     */
+    int loadTiles(int budgetBytes) {
+        int uploadedBytes = 0;
+        while (mTileDecoder != null && uploadedBytes < budgetBytes
+                && (mCurrentRowTiles != null || mPendingRows.get(mNextRow).isDone())) {
+            uploadedBytes += uploadNextTile();
+        }
+        return uploadedBytes;
+    }
+
+    private void queueRows() {
+        // Only a few rows are queued ahead at a time to bound the memory used by decoded tiles
+        int rowsAhead = mTileDecoder.getParallelism() + 1;
+        int unsampledTileSize = mTileSize * mSampleSize;
+        while (mPendingRows.size() < Math.min(mRows, mNextRow + rowsAhead)) {
+            Rect[] rects = new Rect[mCols];
             for (int x = 0; x < mCols; x++) {
-                rect.set(x * unsampledTileSize,
-                        (mRows - y - 1) * unsampledTileSize,
-                        (x + 1) * unsampledTileSize,
-                        (mRows - y) * unsampledTileSize);
-                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
-                // at the top
-                if (leftoverHeight > 0) {
-                    rect.offset(0, -unsampledTileSize + leftoverHeight);
-                }
-                rect.intersect(0, 0, originalWidth, originalHeight);
-                Bitmap useBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-                if (useBitmap != null) {
-                    mTextureHandles[y * mCols + x] = GLUtil.loadTexture(useBitmap);
-                    if (useBitmap != tileBitmap) {
-                        useBitmap.recycle();
-                    }
+                rects[x] = new Rect();
+                getTileRect(x, mPendingRows.size(), mRows, unsampledTileSize,
+                        mOriginalWidth, mOriginalHeight, rects[x]);
+            }
+            mPendingRows.add(mTileDecoder.decodeRow(rects, mSampleSize));
+        }
+    }
+
+    /**
+     * Uploads the next tile, whose row must have finished decoding. Returns the number of bytes
+     * uploaded.
+     */
+    private int uploadNextTile() {
+        if (mCurrentRowTiles == null) {
+            try {
+                mCurrentRowTiles = mPendingRows.get(mNextRow).get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error decoding row " + mNextRow, e.getCause());
+                mCurrentRowTiles = new ParallelTileDecoder.Tile[mCols];
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finishLoading();
+                return 0;
+            }
+            mPendingRows.set(mNextRow, null);
+        }
+
+        int uploadedBytes = 0;
+        ParallelTileDecoder.Tile tile = mCurrentRowTiles[mNextCol];
+        if (tile != null) {
+            mTextureHandles[mNextRow * mCols + mNextCol] = tile.loadTexture();
+            uploadedBytes = tile.getByteCount();
+            addTextureBytes(uploadedBytes);
+            tile.recycle();
+            mCurrentRowTiles[mNextCol] = null;
+        }
+        if (++mNextCol == mCols) {
+            mCurrentRowTiles = null;
+            mNextCol = 0;
+            if (++mNextRow == mRows) {
+                finishLoading();
+            } else {
+                queueRows();
+            }
+        }
+        return uploadedBytes;
+    }
+
+    private void finishLoading() {
+        if (mTileDecoder != null) {
+            mTileDecoder.destroy();
+            mTileDecoder = null;
+        }
+        if (mCurrentRowTiles != null) {
+            for (ParallelTileDecoder.Tile tile : mCurrentRowTiles) {
+                if (tile != null) {
+                    tile.recycle();
                 }
             }
+            mCurrentRowTiles = null;
         }
+        mPendingRows = null;
+        mPlaceholder = null;
     }
 
     public GLPicture(Bitmap bitmap) {
@@ -170,107 +297,254 @@ class GLPicture {
             return;
         }
 
-        mTileSize = Math.min(512, sMaxTextureSize);
+        mTileSize = getTileSize();
         mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
 
         mWidth = bitmap.getWidth();
         mHeight = bitmap.getHeight();
-        int leftoverHeight = mHeight % mTileSize;
 
         // Load m x n textures
         mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
         mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
 
         mTextureHandles = new int[mCols * mRows];
+        createVertexBuffer();
         if (mCols == 1 && mRows == 1) {
             mTextureHandles[0] = GLUtil.loadTexture(bitmap);
+            addTextureBytes(bitmap.getByteCount());
         } else {
             Rect rect = new Rect();
             for (int y = 0; y < mRows; y++) {
                 for (int x = 0; x < mCols; x++) {
-                    rect.set(x * mTileSize,
-                            (mRows - y - 1) * mTileSize,
-                            (x + 1) * mTileSize,
-                            (mRows - y) * mTileSize);
-                    // The bottom tiles must be full tiles for drawing, so only allow edge tiles
-                    // at the top
-                    if (leftoverHeight > 0) {
-                        rect.offset(0, -mTileSize + leftoverHeight);
-                    }
-                    rect.intersect(0, 0, mWidth, mHeight);
+                    getTileRect(x, y, mRows, mTileSize, mWidth, mHeight, rect);
                     Bitmap subBitmap = Bitmap.createBitmap(bitmap,
                             rect.left, rect.top, rect.width(), rect.height());
                     mTextureHandles[y * mCols + x] = GLUtil.loadTexture(subBitmap);
+                    addTextureBytes(subBitmap.getByteCount());
                     subBitmap.recycle();
                 }
             }
         }
     }
 
-    public void draw(float[] mvpMatrix, float alpha) {
-        if (!mHasContent) {
-            return;
+    /**
+     * Loads tiles laid out as described by {@link RawTileFormat}, starting at the buffer's
+     * current position. Using a memory mapped buffer avoids copying the pixels onto the Java
+     * heap.
+     */
+    GLPicture(ByteBuffer tiles, int format, int width, int height, int tileSize) {
+        mTileSize = tileSize;
+        mHasContent = true;
+
+        mWidth = width;
+        mHeight = height;
+        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
+        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+        mTextureHandles = new int[mCols * mRows];
+        createVertexBuffer();
+
+        ByteBuffer tile = tiles.duplicate();
+        int position = tiles.position();
+        Rect rect = new Rect();
+        for (int y = 0; y < mRows; y++) {
+            for (int x = 0; x < mCols; x++) {
+                getTileRect(x, y, mRows, mTileSize, mWidth, mHeight, rect);
+                tile.position(position);
+                mTextureHandles[y * mCols + x] = GLUtil.loadTexture(tile,
+                        rect.width(), rect.height(),
+                        RawTileFormat.glFormat(format), RawTileFormat.glType(format));
+                int tileBytes = RawTileFormat.rowStride(rect.width(), format) * rect.height();
+                addTextureBytes(tileBytes);
+                position += tileBytes;
+            }
         }
+    }
+
+    /**
+     * Computes the bounds of the tile at column {@code x} and row {@code y}, counting rows from
+     * the bottom, of an image split into tiles of the given size.
+     */
+    static void getTileRect(int x, int y, int rows, int tileSize, int width, int height,
+            Rect rect) {
+        rect.set(x * tileSize,
+                (rows - y - 1) * tileSize,
+                (x + 1) * tileSize,
+                (rows - y) * tileSize);
+        // The bottom tiles must be full tiles for drawing, so only allow edge tiles
+        // at the top
+        int leftoverHeight = height % tileSize;
+        if (leftoverHeight > 0) {
+            rect.offset(0, -tileSize + leftoverHeight);
+        }
+        rect.intersect(0, 0, width, height);
+    }
+
+    /**
+     * Wraps an existing texture as a single tile picture. The picture takes ownership of the
+     * texture and deletes it in {@link #destroy()}.
+     */
+    GLPicture(int textureHandle, int width, int height) {
+        mTileSize = Math.max(width, height);
+        mHasContent = true;
+        mWidth = width;
+        mHeight = height;
+        mTextureHandles = new int[] {textureHandle};
+        addTextureBytes(width * height * 4);
+        createVertexBuffer();
+    }
+
+    /**
+     * Builds the static mesh drawn for this picture: two triangles for each tile followed, if
+     * there is a placeholder, by the same triangles textured with each tile's region of the
+     * placeholder. Tile geometry never changes after this.
+     */
+    private void createVertexBuffer() {
+        int tiles = mRows * mCols;
+        float[] vertices = new float[(mPlaceholder != null ? 2 : 1)
+                * tiles * VERTICES * FLOATS_PER_VERTEX];
+        Rect tileRect = new Rect();
+        for (int y = 0; y < mRows; y++) {
+            for (int x = 0; x < mCols; x++) {
+                float left = Math.min(-1 + 2f * x * mTileSize / mWidth, 1);
+                float top = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1);
+                float right = Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1);
+                float bottom = Math.min(-1 + 2f * y * mTileSize / mHeight, 1);
+                int tile = y * mCols + x;
+                putTileVertices(vertices, tile, left, top, right, bottom, 0, 0, 1, 1);
+                if (mPlaceholder != null) {
+                    getTileRect(x, y, mRows, mTileSize, mWidth, mHeight, tileRect);
+                    putTileVertices(vertices, tiles + tile, left, top, right, bottom,
+                            tileRect.left * 1f / mWidth, tileRect.top * 1f / mHeight,
+                            tileRect.right * 1f / mWidth, tileRect.bottom * 1f / mHeight);
+                }
+            }
+        }
+        mVertexBufferHandle = GLUtil.createVertexBuffer(vertices);
+    }
+
+    private static void putTileVertices(float[] vertices, int tile,
+            float left, float top, float right, float bottom,
+            float texLeft, float texTop, float texRight, float texBottom) {
+        int i = tile * VERTICES * FLOATS_PER_VERTEX;
+        for (int v = 0; v < VERTICES; v++) {
+            boolean isRight = SQUARE_TEXTURE_VERTICES[v * 2] == 1;
+            boolean isBottom = SQUARE_TEXTURE_VERTICES[v * 2 + 1] == 1;
+            vertices[i++] = isRight ? right : left;
+            vertices[i++] = isBottom ? bottom : top;
+            vertices[i++] = isRight ? texRight : texLeft;
+            vertices[i++] = isBottom ? texBottom : texTop;
+        }
+    }
+
+    private void addTextureBytes(long bytes) {
+        mTextureBytes += bytes;
+        RenderMetrics.getInstance().addTextureBytes(bytes);
+    }
+
+    public void draw(float[] mvpMatrix, float alpha) {
+        draw(mvpMatrix, alpha, 0);
+    }
+
+    public void draw(float[] mvpMatrix, float alpha, float desaturateAmount) {
+        beginDraw(mvpMatrix);
+        drawBatched(alpha, desaturateAmount);
+        endDraw();
+    }
 
+    /**
+     * Sets up the program and state shared by all pictures, after which any number of pictures
+     * can be drawn with {@link #drawBatched(float, float)} before calling {@link #endDraw()}.
+     */
+    static void beginDraw(float[] mvpMatrix) {
         // Add program to OpenGL ES environment
         GLES20.glUseProgram(sProgramHandle);
 
         // Apply the projection and view transformation
+        setMVPMatrix(mvpMatrix);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(sUniformTextureHandle, 0);
+        GLES20.glEnableVertexAttribArray(sAttribPositionHandle);
+        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
+    }
+
+    /**
+     * Changes the transformation used by subsequent {@link #drawBatched(float, float)} calls.
+     */
+    static void setMVPMatrix(float[] mvpMatrix) {
         GLES20.glUniformMatrix4fv(sUniformMVPMatrixHandle, 1, false, mvpMatrix, 0);
         GLUtil.checkGlError("glUniformMatrix4fv");
+    }
 
-        // Set up vertex buffer
-        GLES20.glEnableVertexAttribArray(sAttribPositionHandle);
+    /**
+     * Draws all tiles from this picture's vertex buffer, only switching textures between them.
+     * Must be called between {@link #beginDraw(float[])} and {@link #endDraw()}.
+     */
+    void drawBatched(float alpha, float desaturateAmount) {
+        if (!mHasContent) {
+            return;
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferHandle);
         GLES20.glVertexAttribPointer(sAttribPositionHandle,
                 COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-                VERTEX_STRIDE_BYTES, mVertexBuffer);
-
-        // Set up texture stuff
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glUniform1i(sUniformTextureHandle, 0);
+                VERTEX_STRIDE_BYTES, 0);
         GLES20.glVertexAttribPointer(sAttribTextureCoordsHandle,
                 COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
-                TEXTURE_VERTEX_STRIDE_BYTES, mTextureCoordsBuffer);
-        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
+                VERTEX_STRIDE_BYTES, TEXTURE_COORDS_OFFSET_BYTES);
 
-        // Set the alpha
+        // Set the alpha and desaturation
         GLES20.glUniform1f(sUniformAlphaHandle, alpha);
+        GLES20.glUniform1f(sUniformDesaturateHandle, desaturateAmount);
 
         // Draw tiles
-        for (int y = 0; y < mRows; y++) {
-            for (int x = 0; x < mCols; x++) {
-                // Pass in the vertex information
-                mVertices[0] = mVertices[3] = mVertices[9]
-                        = Math.min(-1 + 2f * x * mTileSize / mWidth, 1); // left
-                mVertices[1] = mVertices[10] = mVertices[16]
-                        = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1); // top
-                mVertices[6] = mVertices[12] = mVertices[15]
-                        = Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1); // right
-                mVertices[4] = mVertices[7] = mVertices[13]
-                        = Math.min(-1 + 2f * y * mTileSize / mHeight, 1); // bottom
-                mVertexBuffer.put(mVertices);
-                mVertexBuffer.position(0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-                        mTextureHandles[y * mCols + x]);
-                GLUtil.checkGlError("glBindTexture");
-
-                // Draw the two triangles
-                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertices.length / COORDS_PER_VERTEX);
+        int tiles = mRows * mCols;
+        int tilesDrawn = 0;
+        // Tiles that failed to decode have a handle of 0, which must still be bound so that
+        // they don't draw with whatever texture was bound before
+        int boundTextureHandle = -1;
+        for (int tile = 0; tile < tiles; tile++) {
+            int textureHandle = mTextureHandles[tile];
+            int firstVertex = tile * VERTICES;
+            if (textureHandle == 0 && mTileDecoder != null) {
+                // Still loading, so draw this tile's region of the placeholder instead
+                if (mPlaceholder == null || mPlaceholder.mTextureHandles == null) {
+                    continue;
+                }
+                textureHandle = mPlaceholder.mTextureHandles[0];
+                firstVertex += tiles * VERTICES;
+            }
+            if (textureHandle != boundTextureHandle) {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
+                boundTextureHandle = textureHandle;
             }
+
+            // Draw the two triangles
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, firstVertex, VERTICES);
+            tilesDrawn++;
         }
+        GLUtil.checkGlError("glDrawArrays");
+        RenderMetrics.getInstance().onTilesDrawn(tilesDrawn);
+    }
 
+    static void endDraw() {
         GLES20.glDisableVertexAttribArray(sAttribPositionHandle);
         GLES20.glDisableVertexAttribArray(sAttribTextureCoordsHandle);
+        // Other programs use client side vertex arrays
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
     public void destroy() {
+        finishLoading();
         if (mTextureHandles != null) {
             GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
             GLUtil.checkGlError("Destroy picture");
             mTextureHandles = null;
+            addTextureBytes(-mTextureBytes);
+        }
+        if (mVertexBufferHandle != 0) {
+            GLES20.glDeleteBuffers(1, new int[] {mVertexBufferHandle}, 0);
+            mVertexBufferHandle = 0;
         }
     }
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Higher resolution levels of an image, drawn over its base {@link GLPicture} when zoomed in
+ * further than the base picture's resolution allows, like in a deep zoom viewer. Each level is
+ * the image at a power of two sample size, split into tiles that are only decoded when visible.
+ * Decoded tiles are kept least recently used first and evicted once off screen so that their
+ * total texture memory stays under {@link #MAX_TEXTURE_BYTES}.
+ */
+class GLTilePyramid {
+    private static final String TAG = "GLTilePyramid";
+
+    private static final long MAX_TEXTURE_BYTES = 24 * 1024 * 1024;
+
+    private static class Tile {
+        final Rect rect = new Rect(); // in original image pixels
+        final float[] matrix = new float[16]; // maps a [-1, 1] quad to the tile's bounds
+        Future<?> decode;
+        // Handed over by the decoding thread, guarded by the tile
+        Bitmap decodedBitmap;
+        boolean discarded;
+        GLPicture picture;
+        long textureBytes;
+        boolean visible;
+    }
+
+    private final BitmapRegionLoader mBitmapRegionLoader;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBaseSampleSize;
+    private final int mTileSize;
+    private final Runnable mOnTileDecodedListener;
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+
+    // Access ordered, so iteration goes from least to most recently used
+    private final LinkedHashMap<Long, Tile> mTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Tile> mVisibleTiles = new ArrayList<>();
+    private long mTextureBytes;
+
+    private final Rect mVisibleRect = new Rect();
+    private final float[] mTileMVPMatrix = new float[16];
+
+    /**
+     * @param baseSampleSize        the sample size of the base picture, only finer levels are
+     *                              loaded
+     * @param onTileDecodedListener called on a background thread each time a tile is decoded
+     */
+    GLTilePyramid(BitmapRegionLoader bitmapRegionLoader, int baseSampleSize,
+            Runnable onTileDecodedListener) {
+        mBitmapRegionLoader = bitmapRegionLoader;
+        mWidth = bitmapRegionLoader.getWidth();
+        mHeight = bitmapRegionLoader.getHeight();
+        mBaseSampleSize = baseSampleSize;
+        mTileSize = GLPicture.getTileSize();
+        mOnTileDecodedListener = onTileDecodedListener;
+    }
+
+    /**
+     * Picks the level needed to show the given part of the image at full resolution on a screen
+     * of the given height and queues decoding its visible tiles. The viewport is in the base
+     * picture's coordinates, where the image spans [-1, 1] with the top at 1. Pass null when
+     * nothing needs more detail than the base picture, which releases all tiles.
+     */
+    void update(RectF viewport, int screenHeight) {
+        for (Tile tile : mVisibleTiles) {
+            tile.visible = false;
+        }
+        mVisibleTiles.clear();
+
+        int sampleSize = mBaseSampleSize;
+        if (viewport != null && screenHeight > 0) {
+            mVisibleRect.set(
+                    (int) Math.floor((viewport.left + 1) / 2 * mWidth),
+                    (int) Math.floor((1 - viewport.top) / 2 * mHeight),
+                    (int) Math.ceil((viewport.right + 1) / 2 * mWidth),
+                    (int) Math.ceil((1 - viewport.bottom) / 2 * mHeight));
+            if (mVisibleRect.intersect(0, 0, mWidth, mHeight)) {
+                sampleSize = 1;
+                while (mVisibleRect.height() / (sampleSize << 1) >= screenHeight) {
+                    sampleSize <<= 1;
+                }
+                // Fall back to coarser levels if the visible tiles wouldn't fit in memory
+                while (sampleSize < mBaseSampleSize
+                        && visibleTileBytes(sampleSize) > MAX_TEXTURE_BYTES) {
+                    sampleSize <<= 1;
+                }
+            }
+        }
+
+        if (sampleSize < mBaseSampleSize) {
+            int unsampledTileSize = mTileSize * sampleSize;
+            for (int y = mVisibleRect.top / unsampledTileSize;
+                    y <= (mVisibleRect.bottom - 1) / unsampledTileSize; y++) {
+                for (int x = mVisibleRect.left / unsampledTileSize;
+                        x <= (mVisibleRect.right - 1) / unsampledTileSize; x++) {
+                    Tile tile = getOrQueueTile(sampleSize, x, y);
+                    tile.visible = true;
+                    mVisibleTiles.add(tile);
+                }
+            }
+        }
+
+        // Stop decoding tiles that went off screen before they finished
+        Iterator<Tile> iterator = mTiles.values().iterator();
+        while (iterator.hasNext()) {
+            Tile tile = iterator.next();
+            if (!tile.visible && tile.decode != null) {
+                discard(tile);
+                iterator.remove();
+            }
+        }
+        trimToSize(mVisibleTiles.isEmpty() ? 0 : MAX_TEXTURE_BYTES);
+    }
+
+    private long visibleTileBytes(int sampleSize) {
+        int unsampledTileSize = mTileSize * sampleSize;
+        int cols = (mVisibleRect.right - 1) / unsampledTileSize
+                - mVisibleRect.left / unsampledTileSize + 1;
+        int rows = (mVisibleRect.bottom - 1) / unsampledTileSize
+                - mVisibleRect.top / unsampledTileSize + 1;
+        return (long) cols * rows * mTileSize * mTileSize * 4;
+    }
+
+    private Tile getOrQueueTile(final int sampleSize, int x, int y) {
+        long key = ((long) sampleSize << 48) | ((long) y << 24) | x;
+        Tile tile = mTiles.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        final Tile newTile = new Tile();
+        tile = newTile;
+        int unsampledTileSize = mTileSize * sampleSize;
+        tile.rect.set(x * unsampledTileSize, y * unsampledTileSize,
+                (x + 1) * unsampledTileSize, (y + 1) * unsampledTileSize);
+        tile.rect.intersect(0, 0, mWidth, mHeight);
+        float left = -1 + 2f * tile.rect.left / mWidth;
+        float right = -1 + 2f * tile.rect.right / mWidth;
+        float top = 1 - 2f * tile.rect.top / mHeight;
+        float bottom = 1 - 2f * tile.rect.bottom / mHeight;
+        Matrix.setIdentityM(tile.matrix, 0);
+        Matrix.translateM(tile.matrix, 0, (left + right) / 2, (top + bottom) / 2, 0);
+        Matrix.scaleM(tile.matrix, 0, (right - left) / 2, (top - bottom) / 2, 1);
+
+        final Rect rect = new Rect(tile.rect);
+        FutureTask<Void> decode = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                long startNanos = System.nanoTime();
+                Bitmap bitmap = mBitmapRegionLoader.decodeRegion(rect, options);
+                RenderMetrics.getInstance().recordPhase(RenderMetrics.PHASE_DECODE,
+                        System.nanoTime() - startNanos);
+                synchronized (newTile) {
+                    if (newTile.discarded) {
+                        if (bitmap != null) {
+                            bitmap.recycle();
+                        }
+                    } else {
+                        newTile.decodedBitmap = bitmap;
+                    }
+                }
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                if (!isCancelled()) {
+                    mOnTileDecodedListener.run();
+                }
+            }
+        };
+        mExecutorService.execute(decode);
+        tile.decode = decode;
+        mTiles.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Returns whether any visible tiles haven't been uploaded yet.
+     */
+    boolean isLoading() {
+        for (Tile tile : mVisibleTiles) {
+            if (tile.decode != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uploads visible tiles that have finished decoding, until at least {@code budgetBytes} have
+     * been uploaded. Never blocks. Returns the number of bytes uploaded.
+     */
+    int loadTiles(int budgetBytes) {
+        int uploadedBytes = 0;
+        for (Tile tile : mVisibleTiles) {
+            if (uploadedBytes >= budgetBytes) {
+                break;
+            }
+            if (tile.decode == null || !tile.decode.isDone()) {
+                continue;
+            }
+
+            try {
+                tile.decode.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error decoding tile " + tile.rect.toShortString(), e.getCause());
+            } catch (InterruptedException | CancellationException e) {
+                // Only finished decodes are read
+            }
+            tile.decode = null;
+            Bitmap bitmap;
+            synchronized (tile) {
+                bitmap = tile.decodedBitmap;
+                tile.decodedBitmap = null;
+            }
+            if (bitmap != null) {
+                tile.picture = new GLPicture(bitmap);
+                tile.textureBytes = bitmap.getByteCount();
+                mTextureBytes += tile.textureBytes;
+                uploadedBytes += bitmap.getByteCount();
+                bitmap.recycle();
+            }
+        }
+        if (uploadedBytes > 0) {
+            trimToSize(MAX_TEXTURE_BYTES);
+        }
+        return uploadedBytes;
+    }
+
+    /**
+     * Draws the visible tiles that have been loaded. Must be called between
+     * {@link GLPicture#beginDraw(float[])} and {@link GLPicture#endDraw()}.
+     */
+    void draw(float[] mvpMatrix, float alpha, float desaturateAmount) {
+        for (Tile tile : mVisibleTiles) {
+            if (tile.picture == null) {
+                continue;
+            }
+            Matrix.multiplyMM(mTileMVPMatrix, 0, mvpMatrix, 0, tile.matrix, 0);
+            GLPicture.setMVPMatrix(mTileMVPMatrix);
+            tile.picture.drawBatched(alpha, desaturateAmount);
+        }
+        GLPicture.setMVPMatrix(mvpMatrix);
+    }
+
+    /**
+     * Stops decoding the given tile, recycling its bitmap if it has already been decoded but
+     * not uploaded.
+     */
+    private static void discard(Tile tile) {
+        tile.decode.cancel(false);
+        synchronized (tile) {
+            tile.discarded = true;
+            if (tile.decodedBitmap != null) {
+                tile.decodedBitmap.recycle();
+                tile.decodedBitmap = null;
+            }
+        }
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Tile> iterator = mTiles.values().iterator();
+        while (mTextureBytes > maxBytes && iterator.hasNext()) {
+            Tile tile = iterator.next();
+            if (!tile.visible && tile.picture != null) {
+                tile.picture.destroy();
+                tile.picture = null;
+                mTextureBytes -= tile.textureBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    void destroy() {
+        mExecutorService.shutdownNow();
+        for (Tile tile : mTiles.values()) {
+            if (tile.decode != null) {
+                discard(tile);
+            }
+            if (tile.picture != null) {
+                tile.picture.destroy();
+            }
+        }
+        mTiles.clear();
+        mVisibleTiles.clear();
+        mTextureBytes = 0;
+    }
+}
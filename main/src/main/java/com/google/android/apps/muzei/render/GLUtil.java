@@ -17,12 +17,14 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.util.Log;
 
 import net.nurik.roman.muzei.BuildConfig;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -64,6 +66,58 @@ public class GLUtil {
     }
 
     public static int loadTexture(Bitmap bitmap) {
+        int textureHandle = genTexture();
+        if (textureHandle != 0) {
+            // Load the bitmap into the bound texture.
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            GLUtil.checkGlError("texImage2D");
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Loads a texture from raw pixels, such as a direct or memory mapped buffer, without going
+     * through a {@link Bitmap}. Pixels are read from the buffer's current position.
+     */
+    public static int loadTexture(Buffer pixels, int width, int height, int format, int type) {
+        int textureHandle = genTexture();
+        if (textureHandle != 0) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                    format, type, pixels);
+            GLUtil.checkGlError("glTexImage2D");
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Loads an ETC1 compressed texture, which is decompressed to the given fallback format and
+     * type if ETC1 isn't supported.
+     */
+    public static int loadTexture(ETC1Util.ETC1Texture texture, int fallbackFormat,
+            int fallbackType) {
+        int textureHandle = genTexture();
+        if (textureHandle != 0) {
+            ETC1Util.loadTexture(GLES20.GL_TEXTURE_2D, 0, 0, fallbackFormat, fallbackType,
+                    texture);
+            GLUtil.checkGlError("glCompressedTexImage2D");
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Creates an empty RGBA texture of the given size, e.g. for use as a framebuffer attachment.
+     */
+    public static int createTexture(int width, int height) {
+        int textureHandle = genTexture();
+        if (textureHandle != 0) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLUtil.checkGlError("glTexImage2D");
+        }
+        return textureHandle;
+    }
+
+    private static int genTexture() {
         final int[] textureHandle = new int[1];
 
         GLES20.glGenTextures(1, textureHandle, 0);
@@ -82,10 +136,6 @@ public class GLUtil {
                     GLES20.GL_LINEAR);
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                     GLES20.GL_LINEAR);
-
-            // Load the bitmap into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-            GLUtil.checkGlError("texImage2D");
         }
 
         if (textureHandle[0] == 0) {
@@ -98,6 +148,20 @@ public class GLUtil {
         return textureHandle[0];
     }
 
+    /**
+     * Uploads the given vertex data into a new static array buffer object.
+     */
+    public static int createVertexBuffer(float[] vertices) {
+        final int[] bufferHandle = new int[1];
+        GLES20.glGenBuffers(1, bufferHandle, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferHandle[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * BYTES_PER_FLOAT,
+                asFloatBuffer(vertices), GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        checkGlError("glBufferData");
+        return bufferHandle[0];
+    }
+
     public static void checkGlError(String glOperation) {
         int error;
         while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+/**
+ * The Gaussian kernel used by the separable blur shader in {@link GLBlurredPicture}. Texels are
+ * sampled in adjacent pairs at a weighted offset between them so that bilinear filtering
+ * fetches both with a single texture read.
+ *
+ * <p>{@link #convolve(int[], int[], int, int, float, boolean)} is a CPU reference that computes
+ * exactly what one pass of the shader computes, so the math can be checked off-device.
+ */
+public class GaussianKernel {
+    /**
+     * Number of texel pairs sampled on each side of the center texel. Must match the
+     * {@code PAIRS} constant in the shader.
+     */
+    public static final int PAIRS = 16;
+
+    /**
+     * Pairs whose combined weight falls below this are skipped, as the shader does.
+     */
+    public static final float MIN_WEIGHT = 0.0001f;
+
+    /**
+     * Weight of the texel at the given distance from the center, before normalization.
+     */
+    public static float weight(float distance, float sigma) {
+        return (float) Math.exp(-distance * distance / (2 * sigma * sigma));
+    }
+
+    /**
+     * Combined weight of the {@code pair}th pair of texels, at distances
+     * {@code 2 * pair + 1} and {@code 2 * pair + 2}.
+     */
+    public static float pairWeight(int pair, float sigma) {
+        float near = 2 * pair + 1;
+        return weight(near, sigma) + weight(near + 1, sigma);
+    }
+
+    /**
+     * Offset from the center at which to sample the {@code pair}th pair of texels so that
+     * bilinear filtering returns their weighted average.
+     */
+    public static float pairOffset(int pair, float sigma) {
+        float near = 2 * pair + 1;
+        float nearWeight = weight(near, sigma);
+        float farWeight = weight(near + 1, sigma);
+        return (near * nearWeight + (near + 1) * farWeight) / (nearWeight + farWeight);
+    }
+
+    /**
+     * Runs one pass of the blur shader over packed ARGB pixels, using clamp-to-edge bilinear
+     * sampling. Alpha is copied from the source.
+     */
+    public static void convolve(int[] src, int[] dst, int width, int height, float sigma,
+            boolean horizontal) {
+        int length = horizontal ? width : height;
+        int stride = horizontal ? 1 : width;
+        int lines = horizontal ? height : width;
+        float[] offsets = new float[PAIRS];
+        float[] weights = new float[PAIRS];
+        float total = 1;
+        int pairs = 0;
+        for (; pairs < PAIRS; pairs++) {
+            weights[pairs] = pairWeight(pairs, sigma);
+            if (weights[pairs] < MIN_WEIGHT) {
+                break;
+            }
+            offsets[pairs] = pairOffset(pairs, sigma);
+            total += 2 * weights[pairs];
+        }
+
+        float[] rgb = new float[3];
+        for (int line = 0; line < lines; line++) {
+            int offset = horizontal ? line * width : line;
+            for (int i = 0; i < length; i++) {
+                float r, g, b;
+                int center = src[offset + i * stride];
+                r = (center >> 16) & 0xff;
+                g = (center >> 8) & 0xff;
+                b = center & 0xff;
+                for (int p = 0; p < pairs; p++) {
+                    sample(src, offset, stride, length, i + offsets[p], rgb);
+                    r += weights[p] * rgb[0];
+                    g += weights[p] * rgb[1];
+                    b += weights[p] * rgb[2];
+                    sample(src, offset, stride, length, i - offsets[p], rgb);
+                    r += weights[p] * rgb[0];
+                    g += weights[p] * rgb[1];
+                    b += weights[p] * rgb[2];
+                }
+                dst[offset + i * stride] = (center & 0xff000000)
+                        | (Math.round(r / total) << 16)
+                        | (Math.round(g / total) << 8)
+                        | Math.round(b / total);
+            }
+        }
+    }
+
+    private static void sample(int[] src, int offset, int stride, int length, float position,
+            float[] out) {
+        int last = length - 1;
+        int index = (int) Math.floor(position);
+        float fraction = position - index;
+        int p1 = src[offset + Math.max(0, Math.min(index, last)) * stride];
+        int p2 = src[offset + Math.max(0, Math.min(index + 1, last)) * stride];
+        out[0] = ((p1 >> 16) & 0xff) * (1 - fraction) + ((p2 >> 16) & 0xff) * fraction;
+        out[1] = ((p1 >> 8) & 0xff) * (1 - fraction) + ((p2 >> 8) & 0xff) * fraction;
+        out[2] = (p1 & 0xff) * (1 - fraction) + (p2 & 0xff) * fraction;
+    }
+
+    private GaussianKernel() {
+    }
+}
@@ -17,7 +17,6 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
 public class ImageUtil {
     // Make sure input images are very small!
@@ -26,23 +25,21 @@ public class ImageUtil {
             return 0;
         }
 
+        LuminanceAnalyzer analyzer = new LuminanceAnalyzer();
+        analyze(bitmap, analyzer);
+        return analyzer.getMeanLuminance();
+    }
+
+    /**
+     * Reads all of the bitmap's pixels in bulk into the analyzer's reusable buffer and analyzes
+     * them.
+     */
+    public static void analyze(Bitmap bitmap, LuminanceAnalyzer analyzer) {
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
-
-        int totalLum = 0;
-        int n = 0;
-        int x, y, color;
-        for (y = 0; y < height; y++) {
-            for (x = 0; x < width; x++) {
-                ++n;
-                color = bitmap.getPixel(x, y);
-                totalLum += (0.21f * Color.red(color)
-                        + 0.71f * Color.green(color)
-                        + 0.07f * Color.blue(color));
-            }
-        }
-
-        return (totalLum / n) / 256f;
+        int[] pixels = analyzer.obtainPixelBuffer(width * height);
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        analyzer.analyze(pixels, width * height);
     }
 
     private ImageUtil() {
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+/**
+ * Computes a luminance histogram, its mean and percentiles, and the dominant color of packed ARGB
+ * pixels in a single pass using only integer math. Works on any pixel buffer, such as the
+ * downsampled images produced while loading an artwork, and has no Android dependencies.
+ *
+ * <p>Results describe the last analyzed pixels. Buffers are reused across calls, so an instance
+ * must only be used from one thread at a time.
+ */
+public class LuminanceAnalyzer {
+    // Luminance weights of the red, green and blue channels, scaled by 256
+    private static final int RED_WEIGHT = 54;
+    private static final int GREEN_WEIGHT = 182;
+    private static final int BLUE_WEIGHT = 18;
+
+    // Colors are bucketed by the top 4 bits of each channel to find the dominant one
+    private static final int COLOR_BUCKET_BITS = 4;
+
+    private final int[] mHistogram = new int[256];
+    private final int[] mColorBuckets = new int[1 << (3 * COLOR_BUCKET_BITS)];
+    private int[] mPixels;
+    private int mPixelCount;
+    private long mTotalLuminance;
+    private int mDominantColor;
+
+    /**
+     * Returns a buffer of at least the given size that can be filled with pixels and passed to
+     * {@link #analyze(int[], int)}, avoiding an allocation per call.
+     */
+    public int[] obtainPixelBuffer(int size) {
+        if (mPixels == null || mPixels.length < size) {
+            mPixels = new int[size];
+        }
+        return mPixels;
+    }
+
+    /**
+     * Analyzes the first {@code count} packed ARGB pixels of the given buffer. Alpha is ignored.
+     */
+    public void analyze(int[] argb, int count) {
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = 0;
+        }
+        for (int i = 0; i < mColorBuckets.length; i++) {
+            mColorBuckets[i] = 0;
+        }
+
+        long totalLuminance = 0;
+        int bucketShift = 8 - COLOR_BUCKET_BITS;
+        for (int i = 0; i < count; i++) {
+            int p = argb[i];
+            int r = (p >> 16) & 0xff;
+            int g = (p >> 8) & 0xff;
+            int b = p & 0xff;
+            int luminance = (RED_WEIGHT * r + GREEN_WEIGHT * g + BLUE_WEIGHT * b) >> 8;
+            mHistogram[luminance]++;
+            totalLuminance += luminance;
+            mColorBuckets[(r >> bucketShift) << (2 * COLOR_BUCKET_BITS)
+                    | (g >> bucketShift) << COLOR_BUCKET_BITS
+                    | (b >> bucketShift)]++;
+        }
+        mPixelCount = count;
+        mTotalLuminance = totalLuminance;
+
+        int dominantBucket = 0;
+        for (int i = 1; i < mColorBuckets.length; i++) {
+            if (mColorBuckets[i] > mColorBuckets[dominantBucket]) {
+                dominantBucket = i;
+            }
+        }
+        // Use the center of the bucket
+        int mask = (1 << COLOR_BUCKET_BITS) - 1;
+        int half = 1 << (bucketShift - 1);
+        mDominantColor = 0xff000000
+                | (((dominantBucket >> (2 * COLOR_BUCKET_BITS)) & mask) << bucketShift | half) << 16
+                | (((dominantBucket >> COLOR_BUCKET_BITS) & mask) << bucketShift | half) << 8
+                | ((dominantBucket & mask) << bucketShift | half);
+    }
+
+    /**
+     * Returns the mean luminance, from 0 to 1.
+     */
+    public float getMeanLuminance() {
+        return mPixelCount > 0 ? mTotalLuminance * 1f / mPixelCount / 256f : 0;
+    }
+
+    /**
+     * Returns the luminance, from 0 to 1, below which the given fraction of pixels fall.
+     */
+    public float getLuminancePercentile(float fraction) {
+        if (mPixelCount == 0) {
+            return 0;
+        }
+        // At least one pixel, so a fraction of 0 returns the darkest level actually present
+        long target = Math.max(1, (long) Math.ceil(fraction * mPixelCount));
+        long seen = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            seen += mHistogram[i];
+            if (seen >= target) {
+                return i / 256f;
+            }
+        }
+        return (mHistogram.length - 1) / 256f;
+    }
+
+    /**
+     * Returns the number of pixels at each of the 256 luminance levels. The array is reused by
+     * the next call to {@link #analyze(int[], int)}.
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * Returns the most common color, quantized, as an opaque packed ARGB color.
+     */
+    public int getDominantColor() {
+        return mDominantColor;
+    }
+}
@@ -26,6 +26,10 @@ import android.graphics.RectF;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.renderscript.RSRuntimeException;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.animation.AccelerateDecelerateInterpolator;
@@ -35,10 +39,17 @@ import com.google.android.apps.muzei.ArtDetailViewport;
 import com.google.android.apps.muzei.event.ArtworkSizeChangedEvent;
 import com.google.android.apps.muzei.event.SwitchingPhotosStateChangedEvent;
 import com.google.android.apps.muzei.settings.Prefs;
+import com.google.android.apps.muzei.util.Blurrer;
 import com.google.android.apps.muzei.util.ImageBlurrer;
+import com.google.android.apps.muzei.util.JavaBlurrer;
 import com.google.android.apps.muzei.util.MathUtil;
 import com.google.android.apps.muzei.util.TickingFloatAnimator;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -51,6 +62,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     private static final int BLUR_ANIMATION_DURATION = 750;
 
     public static final int DEFAULT_BLUR = 250; // max 500
+    private static final int MAX_BLUR = 500;
     public static final int DEFAULT_GREY = 0; // max 500
     public static final int DEMO_BLUR = 250;
     public static final int DEMO_DIM = 64;
@@ -58,8 +70,22 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     public static final int DEFAULT_MAX_DIM = 128; // technical max 255
     public static final float DIM_RANGE = 0.5f; // percent of max dim
 
+    // Roughly how many bytes of textures to upload per frame while loading an artwork
+    private static final int UPLOAD_BUDGET_BYTES_PER_FRAME = 2 * 1024 * 1024;
+
+    // Blurred keyframes have no fine detail to lose, so they're stored and uploaded at half the
+    // size of RGBA without visible banding
+    private static final int KEYFRAME_FORMAT = RawTileFormat.FORMAT_RGB_565;
+
+    // How long nothing has to animate, load or move before resources that aren't needed to
+    // redraw the current frame are released
+    private static final int IDLE_TIMEOUT_MILLIS = 5000;
+
     private boolean mDemoMode;
     private boolean mPreview;
+    private boolean mUseRenderScript;
+    private boolean mUseShaderBlur;
+    private boolean mCompressSharpTiles;
     private int mMaxPrescaledBlurPixels;
     private int mBlurKeyframes;
     private int mBlurredSampleSize;
@@ -78,11 +104,27 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     private GLPictureSet mCurrentGLPictureSet;
     private GLPictureSet mNextGLPictureSet;
     private GLColorOverlay mColorOverlay;
+    private final BlurKeyframeCache mKeyframeCache;
 
     private BitmapRegionLoader mQueuedNextBitmapRegionLoader;
+    private final ExecutorService mLoadExecutorService = Executors.newSingleThreadExecutor();
+    // Only used by load tasks, which run one at a time on the load executor
+    private final LuminanceAnalyzer mLuminanceAnalyzer = new LuminanceAnalyzer();
+    private final Runnable mRequestRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallbacks.requestRender();
+        }
+    };
 
     private boolean mSurfaceCreated;
 
+    // Idle state, only accessed on the GL thread apart from mViewportChanged
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mIdle;
+    private long mLastActiveUptimeMillis;
+    private volatile boolean mViewportChanged;
+
     private volatile float mNormalOffsetX;
     private volatile RectF mCurrentViewport = new RectF(); // [-1, -1] to [1, 1], flipped
 
@@ -99,7 +141,12 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         mCallbacks = callbacks;
 
         mBlurKeyframes = getNumberOfKeyframes();
+        mUseRenderScript = shouldUseRenderScript();
+        mCompressSharpTiles = shouldCompressSharpTiles();
+        mUseShaderBlur = Prefs.getSharedPreferences(mContext)
+                .getBoolean(Prefs.PREF_SHADER_BLUR, false);
         mBlurAnimator = TickingFloatAnimator.create().from(mBlurKeyframes);
+        mKeyframeCache = new BlurKeyframeCache(context);
 
         mCurrentGLPictureSet = new GLPictureSet(0);
         mNextGLPictureSet = new GLPictureSet(1); // for transitioning to next pictures
@@ -115,6 +162,43 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         return activityManager.isLowRamDevice() ? 1 : 2;
     }
 
+    private boolean shouldUseRenderScript() {
+        // Low RAM devices tend to have RenderScript drivers that fall back to the CPU, where
+        // the pure Java blur is faster and avoids the RenderScript context overhead
+        ActivityManager activityManager = (ActivityManager)
+                mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        return !activityManager.isLowRamDevice();
+    }
+
+    private boolean shouldCompressSharpTiles() {
+        // ETC1 tiles take an eighth of the memory of RGBA ones, which is worth the loss in
+        // quality and the cost of compressing them only on low RAM devices
+        ActivityManager activityManager = (ActivityManager)
+                mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.isLowRamDevice();
+    }
+
+    private Blurrer createBlurrer(Bitmap bitmap) {
+        if (mUseRenderScript) {
+            try {
+                return new ImageBlurrer(mContext, bitmap);
+            } catch (RSRuntimeException e) {
+                Log.w(TAG, "RenderScript unavailable, falling back to Java blur", e);
+                mUseRenderScript = false;
+            }
+        }
+        return new JavaBlurrer(bitmap);
+    }
+
+    private String getKeyframeCacheKey(BitmapRegionLoader bitmapRegionLoader) {
+        if (mDemoMode || mUseShaderBlur || bitmapRegionLoader.getCacheKey() == null) {
+            return null;
+        }
+        return BlurKeyframeCache.createKey(bitmapRegionLoader.getCacheKey(), mHeight,
+                mMaxPrescaledBlurPixels, mBlurredSampleSize, mMaxGrey, mMaxDim,
+                mBlurKeyframes);
+    }
+
     public void recomputeMaxPrescaledBlurPixels() {
         // Compute blur sizes
         int blurAmount = mDemoMode
@@ -124,13 +208,26 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         float maxBlurRadiusOverScreenHeight = blurAmount * 0.0001f;
         DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
         int maxBlurPx = (int) (dm.heightPixels * maxBlurRadiusOverScreenHeight);
+        // When blurring with shaders, the size of the blurred texture must not depend on
+        // the blur amount so that changing it doesn't require reloading the artwork
+        int sampleSizeBlurPx = mUseShaderBlur
+                ? (int) (dm.heightPixels * MAX_BLUR * 0.0001f)
+                : maxBlurPx;
         mBlurredSampleSize = 4;
-        while (maxBlurPx / mBlurredSampleSize > ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS) {
+        while (sampleSizeBlurPx / mBlurredSampleSize > ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS) {
             mBlurredSampleSize <<= 1;
         }
         mMaxPrescaledBlurPixels = maxBlurPx / mBlurredSampleSize;
     }
 
+    /**
+     * Returns whether changes to the blur and grey amounts are applied at draw time, without
+     * reloading the current artwork.
+     */
+    public boolean isShaderBlur() {
+        return mUseShaderBlur;
+    }
+
     public void recomputeMaxDimAmount() {
         mMaxDim = Prefs.getSharedPreferences(mContext).getInt(
                         Prefs.PREF_DIM_AMOUNT, DEFAULT_MAX_DIM);
@@ -159,6 +256,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
 
         GLColorOverlay.initGl();
         GLPicture.initGl();
+        GLBlurredPicture.initGl();
 
         mColorOverlay = new GLColorOverlay();
 
@@ -189,12 +287,28 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     }
 
     public void onDrawFrame(GL10 unused) {
+        long frameStartNanos = System.nanoTime();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         Matrix.setIdentityM(mMMatrix, 0);
 
+        // Upload whatever the background loads have ready, within a per frame budget
+        int uploadBudget = mNextGLPictureSet.continueLoading(UPLOAD_BUDGET_BYTES_PER_FRAME);
+        uploadBudget = mCurrentGLPictureSet.continueLoading(uploadBudget);
+        uploadBudget = mCurrentGLPictureSet.continueRestoringKeyframes(uploadBudget);
+        uploadBudget = mCurrentGLPictureSet.continueLoadingDetail(uploadBudget);
+        if (mNextGLPictureSet.mAwaitingCrossfade && mNextGLPictureSet.isPreviewLoaded()) {
+            mNextGLPictureSet.mAwaitingCrossfade = false;
+            startCrossfade();
+        }
+
         boolean stillAnimating = mCrossfadeAnimator.tick();
         stillAnimating |= mBlurAnimator.tick();
+        // Background loads request a render when they have more ready, but if the budget ran
+        // out there may already be more waiting
+        stillAnimating |= uploadBudget <= 0;
+        updateIdleState(stillAnimating || mCurrentGLPictureSet.isLoading()
+                || mNextGLPictureSet.isLoading());
 
         if (mBlurRelatedToArtDetailMode) {
             mCurrentGLPictureSet.recomputeTransformMatrices();
@@ -207,6 +321,11 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             dimAmount = MathUtil.interpolate(dimAmount, mNextGLPictureSet.mDimAmount,
                     mCrossfadeAnimator.currentValue());
             mNextGLPictureSet.drawFrame(mCrossfadeAnimator.currentValue());
+            if (!mNextGLPictureSet.mFirstPixelDrawn && mCrossfadeAnimator.currentValue() > 0) {
+                mNextGLPictureSet.mFirstPixelDrawn = true;
+                RenderMetrics.getInstance().recordPhase(RenderMetrics.PHASE_FIRST_PIXEL,
+                        System.nanoTime() - mNextGLPictureSet.mLoadStartNanos);
+            }
         }
 
         mColorOverlay.setColor(Color.argb((int) (dimAmount
@@ -216,6 +335,56 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         if (stillAnimating) {
             mCallbacks.requestRender();
         }
+        RenderMetrics.getInstance().onFrameDrawn(frameStartNanos, System.nanoTime(),
+                mCrossfadeAnimator.isRunning() || mBlurAnimator.isRunning());
+    }
+
+    /**
+     * Goes idle once nothing has animated, loaded or moved for {@link #IDLE_TIMEOUT_MILLIS},
+     * and leaves the idle state as soon as something animates or loads again, before the frame
+     * is drawn. Moving the viewport only postpones going idle since it doesn't need anything
+     * that was released.
+     */
+    private void updateIdleState(boolean active) {
+        long now = SystemClock.uptimeMillis();
+        if (active) {
+            exitIdle();
+        }
+        if (active || mViewportChanged) {
+            mViewportChanged = false;
+            mLastActiveUptimeMillis = now;
+        }
+        if (mIdle || active) {
+            return;
+        }
+
+        long inactiveMillis = now - mLastActiveUptimeMillis;
+        if (inactiveMillis >= IDLE_TIMEOUT_MILLIS) {
+            mIdle = true;
+            mHandler.removeCallbacks(mRequestRenderRunnable);
+            mCurrentGLPictureSet.releaseUnusedKeyframes();
+            mNextGLPictureSet.destroyPictures();
+        } else {
+            // Nothing else may draw a frame, so draw one once the timeout has passed
+            mHandler.removeCallbacks(mRequestRenderRunnable);
+            mHandler.postDelayed(mRequestRenderRunnable, IDLE_TIMEOUT_MILLIS - inactiveMillis);
+        }
+    }
+
+    /**
+     * Starts restoring everything released while idle, ahead of it being needed, e.g. when the
+     * wallpaper becomes visible and is about to be unblurred. Must be called on the GL thread.
+     */
+    public void exitIdle() {
+        if (!mIdle) {
+            return;
+        }
+        mIdle = false;
+        mLastActiveUptimeMillis = SystemClock.uptimeMillis();
+        mCurrentGLPictureSet.restoreKeyframes();
+        if (mSurfaceCreated) {
+            mCallbacks.requestRender();
+        }
     }
 
     public void setNormalOffsetX(float x) {
@@ -224,6 +393,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     }
 
     private void onViewportChanged() {
+        mViewportChanged = true;
         mCurrentGLPictureSet.recomputeTransformMatrices();
         mNextGLPictureSet.recomputeTransformMatrices();
         if (mSurfaceCreated) {
@@ -241,7 +411,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             return;
         }
 
-        if (mCrossfadeAnimator.isRunning()) {
+        if (mCrossfadeAnimator.isRunning() || mNextGLPictureSet.mAwaitingCrossfade) {
             if (mQueuedNextBitmapRegionLoader != null) {
                 mQueuedNextBitmapRegionLoader.destroy();
             }
@@ -259,8 +429,15 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mAspectRatio);
         }
 
+        mNextGLPictureSet.mLoadStartNanos = System.nanoTime();
+        mNextGLPictureSet.mFirstPixelDrawn = false;
         mNextGLPictureSet.load(bitmapRegionLoader);
+        // The crossfade starts once the preview has been loaded
+        mNextGLPictureSet.mAwaitingCrossfade = true;
+        mCallbacks.requestRender();
+    }
 
+    private void startCrossfade() {
         mCrossfadeAnimator
                 .from(0).to(1)
                 .withDuration(CROSSFADE_ANIMATION_DURATION)
@@ -272,12 +449,13 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                         mCurrentGLPictureSet = mNextGLPictureSet;
                         mNextGLPictureSet = new GLPictureSet(oldGLPictureSet.mId);
                         mCallbacks.requestRender();
+                        // Release the old pictures' textures right away rather than waiting
+                        // for the idle state
                         oldGLPictureSet.destroyPictures();
                         if (!mDemoMode) {
                             EventBus.getDefault().postSticky(new SwitchingPhotosStateChangedEvent(
                                     mCurrentGLPictureSet.mId, false));
                         }
-                        System.gc();
                         if (mQueuedNextBitmapRegionLoader != null) {
                             BitmapRegionLoader queuedNextBitmapRegionLoader
                                     = mQueuedNextBitmapRegionLoader;
@@ -303,14 +481,43 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         private volatile float[] mPMatrix = new float[16];
         private final float[] mMVPMatrix = new float[16];
         private GLPicture[] mPictures = new GLPicture[mBlurKeyframes + 1];
+        private GLBlurredPicture mBlurredPicture;
         private boolean mHasBitmap = false;
         private float mBitmapAspectRatio = 1f;
         private int mDimAmount = 0;
 
+        // Progressive loading state
+        private ArtworkLoadTask mLoadTask;
+        private GLPicture mPreviewPicture;
+        private boolean mPreviewLoaded;
+        private boolean mKeyframesLoaded;
+        private int mLoadedKeyframes;
+        private boolean mAwaitingCrossfade;
+        private long mLoadStartNanos;
+        private boolean mFirstPixelDrawn;
+
+        // Raw tiles of the blurred keyframes, kept to restore keyframes released while idle
+        private ByteBuffer[] mKeyframeTiles;
+        private int mKeyframeFormat;
+        private int mKeyframeWidth;
+        private int mKeyframeHeight;
+        private int mKeyframeTileSize;
+        private boolean mKeyframesReleased;
+        private boolean mRestoringKeyframes;
+
+        // Higher resolution tiles for zooming into the sharp picture
+        private BitmapRegionLoader mBitmapRegionLoader;
+        private GLTilePyramid mTilePyramid;
+        private final RectF mViewport = new RectF();
+
         public GLPictureSet(int id) {
             mId = id;
         }
 
+        /**
+         * Starts loading the given artwork on a background thread. Nothing is shown until the
+         * preview has been uploaded by {@link #continueLoading(int)}.
+         */
         public void load(BitmapRegionLoader bitmapRegionLoader) {
             mHasBitmap = bitmapRegionLoader != null
                     && bitmapRegionLoader.getWidth() != 0 && bitmapRegionLoader.getHeight() != 0;
@@ -323,95 +530,240 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             destroyPictures();
 
             if (mHasBitmap) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                Rect rect = new Rect();
-                int originalWidth = bitmapRegionLoader.getWidth();
-                int originalHeight = bitmapRegionLoader.getHeight();
-
-                // Calculate image darkness to determine dim amount
-                rect.set(0, 0, originalWidth, originalHeight);
-                options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight, 64);
-                Bitmap tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-                float darkness = ImageUtil.calculateDarkness(tempBitmap);
-                mDimAmount = mDemoMode
-                        ? DEMO_DIM
-                        : (int) (mMaxDim * ((1 - DIM_RANGE) + DIM_RANGE * Math.sqrt(darkness)));
-                if (tempBitmap != null) {
-                    tempBitmap.recycle();
+                mBitmapRegionLoader = bitmapRegionLoader;
+                mLoadTask = new ArtworkLoadTask(bitmapRegionLoader);
+                mLoadExecutorService.execute(mLoadTask);
+            } else if (bitmapRegionLoader != null) {
+                destroyInBackground(bitmapRegionLoader);
+            }
+
+            recomputeTransformMatrices();
+            mCallbacks.requestRender();
+        }
+
+        /**
+         * Returns whether enough of the artwork passed to {@link #load} has been uploaded to
+         * start showing it.
+         */
+        public boolean isPreviewLoaded() {
+            return mLoadTask == null || mPreviewLoaded;
+        }
+
+        public boolean isLoading() {
+            return mLoadTask != null || mAwaitingCrossfade || mRestoringKeyframes
+                    || (mTilePyramid != null && mTilePyramid.isLoading());
+        }
+
+        /**
+         * Loads higher resolution tiles for the visible part of the sharp picture once it is
+         * fully loaded, if zoomed in beyond its resolution such as in art detail mode. Returns
+         * the remaining upload budget.
+         */
+        public int continueLoadingDetail(int uploadBudgetBytes) {
+            if (mTilePyramid == null) {
+                if (mLoadTask != null || mBitmapRegionLoader == null || mPictures[0] == null) {
+                    return uploadBudgetBytes;
+                }
+                mTilePyramid = new GLTilePyramid(mBitmapRegionLoader,
+                        mPictures[0].getSampleSize(), mRequestRenderRunnable);
+            }
+            // Detail is only drawn over the sharp picture
+            mTilePyramid.update(mBlurAnimator.currentValue() == 0 ? mViewport : null, mHeight);
+            return uploadBudgetBytes - mTilePyramid.loadTiles(uploadBudgetBytes);
+        }
+
+        /**
+         * Destroys the blurred keyframes that aren't needed to draw the current, settled blur
+         * state. Only keyframes that can be restored from raw tiles are released.
+         */
+        public void releaseUnusedKeyframes() {
+            if (mKeyframeTiles == null || mLoadTask != null) {
+                return;
+            }
+            float blurFrame = mBlurAnimator.currentValue();
+            int lo = (int) Math.floor(blurFrame);
+            int hi = (int) Math.ceil(blurFrame);
+            for (int f = 1; f <= mBlurKeyframes; f++) {
+                if (f != lo && f != hi && mPictures[f] != null && mPictures[f] != mPictures[0]) {
+                    mPictures[f].destroy();
+                    mPictures[f] = null;
+                    mKeyframesReleased = true;
+                }
+            }
+        }
+
+        /**
+         * Starts reuploading any keyframes destroyed by {@link #releaseUnusedKeyframes()}, which
+         * {@link #continueRestoringKeyframes(int)} then does within the per frame budget.
+         */
+        public void restoreKeyframes() {
+            mRestoringKeyframes = mKeyframesReleased;
+        }
+
+        /**
+         * Reuploads released keyframes, nearest to the current blur state first, stopping once
+         * roughly {@code uploadBudgetBytes} have been uploaded. Returns the remaining budget.
+         */
+        public int continueRestoringKeyframes(int uploadBudgetBytes) {
+            if (!mRestoringKeyframes || uploadBudgetBytes <= 0) {
+                return uploadBudgetBytes;
+            }
+            long uploadStartNanos = System.nanoTime();
+            float blurFrame = mBlurAnimator.currentValue();
+            while (uploadBudgetBytes > 0) {
+                int nearest = -1;
+                for (int f = 1; f <= mBlurKeyframes; f++) {
+                    if (mPictures[f] == null && (nearest == -1
+                            || Math.abs(f - blurFrame) < Math.abs(nearest - blurFrame))) {
+                        nearest = f;
+                    }
+                }
+                if (nearest == -1) {
+                    mKeyframesReleased = false;
+                    mRestoringKeyframes = false;
+                    break;
+                }
+                ByteBuffer tiles = mKeyframeTiles[nearest - 1];
+                mPictures[nearest] = new GLPicture(tiles.duplicate(),
+                        mKeyframeFormat, mKeyframeWidth, mKeyframeHeight, mKeyframeTileSize);
+                uploadBudgetBytes -= tiles.remaining();
+            }
+            RenderMetrics.getInstance().recordPhase(RenderMetrics.PHASE_UPLOAD,
+                    System.nanoTime() - uploadStartNanos);
+            return uploadBudgetBytes;
+        }
+
+        /**
+         * Returns the given keyframe, or while released keyframes are being restored, the
+         * nearest one that is loaded.
+         */
+        private GLPicture getKeyframe(int f) {
+            if (!mKeyframesReleased) {
+                return mPictures[f];
+            }
+            for (int distance = 0; distance <= mBlurKeyframes; distance++) {
+                if (f - distance >= 0 && mPictures[f - distance] != null) {
+                    return mPictures[f - distance];
+                } else if (f + distance <= mBlurKeyframes && mPictures[f + distance] != null) {
+                    return mPictures[f + distance];
                 }
+            }
+            return null;
+        }
+
+        /**
+         * Uploads whatever the background load has ready, stopping once roughly
+         * {@code uploadBudgetBytes} have been uploaded. Returns the remaining budget, which is
+         * zero or less if there may be more ready to upload.
+         */
+        public int continueLoading(int uploadBudgetBytes) {
+            ArtworkLoadTask task = mLoadTask;
+            if (task == null) {
+                return uploadBudgetBytes;
+            }
+            long uploadStartNanos = System.nanoTime();
+            int initialUploadBudgetBytes = uploadBudgetBytes;
+
+            if (!mPreviewLoaded) {
+                if (!task.mPreviewReady) {
+                    return uploadBudgetBytes;
+                }
+                uploadBudgetBytes -= loadPreview(task);
+            }
+            if (!mKeyframesLoaded && uploadBudgetBytes > 0 && task.mKeyframesReady) {
+                uploadBudgetBytes -= loadKeyframes(task, uploadBudgetBytes);
+            }
+            if (mPictures[0] != null && uploadBudgetBytes > 0) {
+                uploadBudgetBytes -= mPictures[0].loadTiles(uploadBudgetBytes);
+            }
+
+            if (uploadBudgetBytes != initialUploadBudgetBytes) {
+                RenderMetrics.getInstance().recordPhase(RenderMetrics.PHASE_UPLOAD,
+                        System.nanoTime() - uploadStartNanos);
+            }
 
-                // Create the GLPicture objects
-                mPictures[0] = new GLPicture(bitmapRegionLoader, mHeight);
-                if (mMaxPrescaledBlurPixels == 0 && mMaxGrey == 0) {
+            if (mKeyframesLoaded && (mPictures[0] == null || !mPictures[0].isLoading())) {
+                // Everything is loaded, so the preview is no longer needed
+                if (mPreviewPicture != null) {
+                    mPreviewPicture.destroy();
+                    mPreviewPicture = null;
+                }
+                mLoadTask = null;
+                RenderMetrics.getInstance().recordPhase(RenderMetrics.PHASE_FULLY_LOADED,
+                        System.nanoTime() - mLoadStartNanos);
+            }
+            return uploadBudgetBytes;
+        }
+
+        private int loadPreview(ArtworkLoadTask task) {
+            Bitmap previewBitmap;
+            ParallelTileDecoder tileDecoder;
+            synchronized (task) {
+                mDimAmount = task.mDimAmount;
+                previewBitmap = task.mPreviewBitmap;
+                task.mPreviewBitmap = null;
+                tileDecoder = task.mTileDecoder;
+                task.mTileDecoder = null;
+            }
+
+            int uploadedBytes = 0;
+            if (previewBitmap != null) {
+                mPreviewPicture = new GLPicture(previewBitmap);
+                uploadedBytes = previewBitmap.getByteCount();
+                previewBitmap.recycle();
+            }
+
+            // Start decoding the sharp picture's tiles, and show the preview for every keyframe
+            // until they and the blurred keyframes are loaded
+            mPictures[0] = tileDecoder != null
+                    ? new GLPicture(tileDecoder, mHeight, mPreviewPicture)
+                    : null;
+            for (int f = 1; f <= mBlurKeyframes; f++) {
+                mPictures[f] = task.mKeyframesFromSharpPicture ? mPictures[0] : mPreviewPicture;
+            }
+            mPreviewLoaded = true;
+            return uploadedBytes;
+        }
+
+        private int loadKeyframes(ArtworkLoadTask task, int uploadBudgetBytes) {
+            int uploadedBytes = 0;
+            if (task.mShaderBlur) {
+                for (int f = 1; f <= mBlurKeyframes; f++) {
+                    mPictures[f] = null;
+                }
+                if (task.mBlurredSourceBitmap != null) {
+                    mBlurredPicture = new GLBlurredPicture(task.mBlurredSourceBitmap);
+                    uploadedBytes = task.mBlurredSourceBitmap.getByteCount();
+                    task.mBlurredSourceBitmap.recycle();
+                    task.mBlurredSourceBitmap = null;
+                }
+            } else if (!task.mKeyframesFromSharpPicture) {
+                if (task.mKeyframeTiles == null) {
                     for (int f = 1; f <= mBlurKeyframes; f++) {
-                        mPictures[f] = mPictures[0];
+                        mPictures[f] = null;
                     }
                 } else {
-                    int sampleSizeTargetHeight, scaledHeight, scaledWidth;
-                    if (mMaxPrescaledBlurPixels > 0) {
-                        sampleSizeTargetHeight = mHeight / mBlurredSampleSize;
-                    } else {
-                        sampleSizeTargetHeight = mHeight;
+                    mKeyframeTiles = task.mKeyframeTiles;
+                    mKeyframeFormat = task.mKeyframeFormat;
+                    mKeyframeWidth = task.mKeyframeWidth;
+                    mKeyframeHeight = task.mKeyframeHeight;
+                    mKeyframeTileSize = task.mKeyframeTileSize;
+                    // Keyframes replace the preview one at a time as the budget allows
+                    while (mLoadedKeyframes < mBlurKeyframes && uploadedBytes < uploadBudgetBytes) {
+                        ByteBuffer tiles = task.mKeyframeTiles[mLoadedKeyframes];
+                        mPictures[mLoadedKeyframes + 1] = new GLPicture(tiles.duplicate(),
+                                task.mKeyframeFormat, task.mKeyframeWidth, task.mKeyframeHeight,
+                                task.mKeyframeTileSize);
+                        uploadedBytes += tiles.remaining();
+                        mLoadedKeyframes++;
                     }
-
-                    // Note that image width should be a multiple of 4 to avoid
-                    // issues with RenderScript allocations.
-                    scaledHeight = Math.max(2, MathUtil.floorEven(
-                            sampleSizeTargetHeight));
-                    scaledWidth = Math.max(4, MathUtil.roundMult4(
-                            (int) (scaledHeight * mBitmapAspectRatio)));
-
-                    // To blur, first load the entire bitmap region, but at a very large
-                    // sample size that's appropriate for the final blurred image
-                    options.inSampleSize = ImageUtil.calculateSampleSize(
-                            originalHeight, sampleSizeTargetHeight);
-                    rect.set(0, 0, originalWidth, originalHeight);
-                    tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-
-                    if (tempBitmap != null
-                            && tempBitmap.getWidth() != 0 && tempBitmap.getHeight() != 0) {
-                        // Next, create a scaled down version of the bitmap so that the blur radius
-                        // looks appropriate (tempBitmap will likely be bigger than the final
-                        // blurred bitmap, and thus the blur may look smaller if we just used
-                        // tempBitmap as the final blurred bitmap).
-
-                        // Note that image width should be a multiple of 4 to avoid
-                        // issues with RenderScript allocations.
-                        Bitmap scaledBitmap = Bitmap.createScaledBitmap(
-                                tempBitmap, scaledWidth, scaledHeight, true);
-                        if (tempBitmap != scaledBitmap) {
-                            tempBitmap.recycle();
-                        }
-
-                        // And finally, create a blurred copy for each keyframe.
-                        ImageBlurrer blurrer = new ImageBlurrer(mContext, scaledBitmap);
-                        for (int f = 1; f <= mBlurKeyframes; f++) {
-                            float desaturateAmount = mMaxGrey / 500f * f / mBlurKeyframes;
-                            float blurRadius = 0f;
-                            if (mMaxPrescaledBlurPixels > 0) {
-                                blurRadius = blurRadiusAtFrame(f);
-                            }
-                            Bitmap blurredBitmap = blurrer.blurBitmap(blurRadius, desaturateAmount);
-                            mPictures[f] = new GLPicture(blurredBitmap);
-                            if (blurredBitmap != null) {
-                                blurredBitmap.recycle();
-                            }
-                        }
-                        blurrer.destroy();
-
-                        scaledBitmap.recycle();
-                    } else {
-                        Log.e(TAG, "BitmapRegionLoader failed to decode the region, rect="
-                                + rect.toShortString());
-                        for (int f = 1; f <= mBlurKeyframes; f++) {
-                            mPictures[f] = null;
-                        }
+                    if (mLoadedKeyframes < mBlurKeyframes) {
+                        return uploadedBytes;
                     }
                 }
             }
-
-            recomputeTransformMatrices();
-            mCallbacks.requestRender();
+            mKeyframesLoaded = true;
+            return uploadedBytes;
         }
 
         private void recomputeTransformMatrices() {
@@ -478,6 +830,7 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mCurrentViewport.left, mCurrentViewport.right,
                     mCurrentViewport.bottom, mCurrentViewport.top,
                     1, 10);
+            mViewport.set(mCurrentViewport);
         }
 
         public void drawFrame(float globalAlpha) {
@@ -489,27 +842,56 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             Matrix.multiplyMM(mMVPMatrix, 0, mPMatrix, 0, mMVPMatrix, 0);
 
             float blurFrame = mBlurAnimator.currentValue();
-            int lo = (int) Math.floor(blurFrame);
-            int hi = (int) Math.ceil(blurFrame);
+            GLPicture loPicture;
+            GLPicture hiPicture;
+            float localHiAlpha;
+            float desaturateAmount = 0;
+            if (mUseShaderBlur) {
+                // Crossfade from the sharp picture to the blurred picture over the first
+                // keyframe, after which only the blur radius changes
+                loPicture = mPictures[0];
+                hiPicture = null;
+                localHiAlpha = 0;
+                desaturateAmount = mMaxGrey / 500f * blurFrame / mBlurKeyframes;
+                if (mBlurredPicture != null && mMaxPrescaledBlurPixels > 0 && blurFrame > 0) {
+                    hiPicture = mBlurredPicture.blur(blurRadiusAtFrame(blurFrame));
+                    localHiAlpha = Math.min(1, blurFrame);
+                }
+                if (hiPicture == null) {
+                    hiPicture = loPicture;
+                }
+            } else {
+                int lo = (int) Math.floor(blurFrame);
+                int hi = (int) Math.ceil(blurFrame);
+                loPicture = getKeyframe(lo);
+                hiPicture = getKeyframe(hi);
+                localHiAlpha = (blurFrame - lo);
+            }
 
-            float localHiAlpha = (blurFrame - lo);
+            // Pick the pictures to draw along with their alphas, so that the program and
+            // vertex attributes only need to be set up once for both
+            GLPicture firstPicture = null;
+            float firstAlpha = 0;
+            GLPicture secondPicture = null;
+            float secondAlpha = 0;
             if (globalAlpha <= 0) {
                 // Nothing to draw
-            } else if (lo == hi) {
+            } else if (loPicture == hiPicture || localHiAlpha <= 0) {
                 // Just draw one
-                if (mPictures[lo] == null) {
-                    return;
-                }
-
-                mPictures[lo].draw(mMVPMatrix, globalAlpha);
+                firstPicture = loPicture;
+                firstAlpha = globalAlpha;
+            } else if (localHiAlpha >= 1) {
+                // Only the top picture is visible
+                firstPicture = hiPicture;
+                firstAlpha = globalAlpha;
+            } else if (loPicture == null || hiPicture == null) {
+                // Nothing to draw
             } else if (globalAlpha == 1) {
                 // Simple drawing
-                if (mPictures[lo] == null || mPictures[hi] == null) {
-                    return;
-                }
-
-                mPictures[lo].draw(mMVPMatrix, 1);
-                mPictures[hi].draw(mMVPMatrix, localHiAlpha);
+                firstPicture = loPicture;
+                firstAlpha = 1;
+                secondPicture = hiPicture;
+                secondAlpha = localHiAlpha;
             } else {
                 // If there's both a global and local alpha, re-compose alphas, to
                 // effectively compose hi and lo before composing the result
@@ -518,31 +900,432 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                 // The math, where a1,a2 are previous alphas and b1,b2 are new alphas:
                 //   b1 = a1 * (a2 - 1) / (a1 * a2 - 1)
                 //   b2 = a1 * a2
-                if (mPictures[lo] == null || mPictures[hi] == null) {
-                    return;
-                }
-
-                float newLocalLoAlpha = globalAlpha * (localHiAlpha - 1)
+                firstPicture = loPicture;
+                firstAlpha = globalAlpha * (localHiAlpha - 1)
                         / (globalAlpha * localHiAlpha - 1);
-                float newLocalHiAlpha = globalAlpha * localHiAlpha;
-                mPictures[lo].draw(mMVPMatrix, newLocalLoAlpha);
-                mPictures[hi].draw(mMVPMatrix, newLocalHiAlpha);
+                secondPicture = hiPicture;
+                secondAlpha = globalAlpha * localHiAlpha;
             }
+
+            if (firstPicture == null) {
+                return;
+            }
+
+            GLPicture.beginDraw(mMVPMatrix);
+            firstPicture.drawBatched(firstAlpha, desaturateAmount);
+            if (secondPicture != null) {
+                secondPicture.drawBatched(secondAlpha, desaturateAmount);
+            } else if (firstPicture == mPictures[0] && firstAlpha == 1 && mTilePyramid != null) {
+                // Only add detail over the fully opaque sharp picture, where the tiles can
+                // simply cover it
+                mTilePyramid.draw(mMVPMatrix, 1, desaturateAmount);
+            }
+            GLPicture.endDraw();
         }
 
         public void destroyPictures() {
+            if (mLoadTask != null) {
+                mLoadTask.cancel();
+                mLoadTask = null;
+            }
+            mPreviewLoaded = false;
+            mKeyframesLoaded = false;
+            mLoadedKeyframes = 0;
+            mKeyframeTiles = null;
+            mKeyframesReleased = false;
+            mRestoringKeyframes = false;
+            if (mTilePyramid != null) {
+                mTilePyramid.destroy();
+                mTilePyramid = null;
+            }
             for (int i = 0; i < mPictures.length; i++) {
                 if (mPictures[i] != null) {
                     mPictures[i].destroy();
                     mPictures[i] = null;
                 }
             }
+            if (mBitmapRegionLoader != null) {
+                // Only once nothing else can start decoding from it
+                destroyInBackground(mBitmapRegionLoader);
+                mBitmapRegionLoader = null;
+            }
+            if (mBlurredPicture != null) {
+                mBlurredPicture.destroy();
+                mBlurredPicture = null;
+            }
+            if (mPreviewPicture != null) {
+                mPreviewPicture.destroy();
+                mPreviewPicture = null;
+            }
+        }
+    }
+
+    /**
+     * Does all of the decoding, blurring and disk I/O needed to load an artwork on a background
+     * thread, producing bitmaps and raw tiles that {@link GLPictureSet} then uploads to textures
+     * a little at a time on the GL thread. Settings are captured when the task is created.
+     */
+    private class ArtworkLoadTask implements Runnable {
+        private final RenderMetrics mMetrics = RenderMetrics.getInstance();
+        private final BitmapRegionLoader mBitmapRegionLoader;
+        private final String mCacheKey;
+        private final int mScreenHeight;
+        private final int mTileSize;
+        private final int mMaxTextureSize;
+        private final boolean mDemo;
+        private final int mMaxDimAmount;
+        private final int mMaxPrescaledBlur;
+        private final int mBlurredSampleSizeForLoad;
+        private final float[] mRadii = new float[mBlurKeyframes];
+        private final float[] mDesaturateAmounts = new float[mBlurKeyframes];
+        private final boolean mCompressTiles;
+        final boolean mShaderBlur;
+        final boolean mKeyframesFromSharpPicture;
+
+        // Results of the preview stage, handed over to the GL thread under the task's lock
+        volatile boolean mPreviewReady;
+        int mDimAmount = DEFAULT_MAX_DIM;
+        Bitmap mPreviewBitmap;
+        ParallelTileDecoder mTileDecoder;
+        private boolean mCancelled;
+
+        // Results of the keyframe stage, only read by the GL thread after mKeyframesReady
+        volatile boolean mKeyframesReady;
+        Bitmap mBlurredSourceBitmap;
+        ByteBuffer[] mKeyframeTiles;
+        int mKeyframeWidth;
+        int mKeyframeHeight;
+        int mKeyframeTileSize;
+        int mKeyframeFormat;
+
+        ArtworkLoadTask(BitmapRegionLoader bitmapRegionLoader) {
+            mBitmapRegionLoader = bitmapRegionLoader;
+            mCacheKey = getKeyframeCacheKey(bitmapRegionLoader);
+            mScreenHeight = mHeight;
+            mTileSize = GLPicture.getTileSize();
+            mMaxTextureSize = GLPicture.getMaxTextureSize();
+            mDemo = mDemoMode;
+            mMaxDimAmount = mMaxDim;
+            mMaxPrescaledBlur = mMaxPrescaledBlurPixels;
+            mBlurredSampleSizeForLoad = mBlurredSampleSize;
+            mCompressTiles = mCompressSharpTiles && GLPicture.isEtc1Supported();
+            mShaderBlur = mUseShaderBlur;
+            mKeyframesFromSharpPicture = !mUseShaderBlur
+                    && mMaxPrescaledBlurPixels == 0 && mMaxGrey == 0;
+            for (int f = 1; f <= mBlurKeyframes; f++) {
+                mDesaturateAmounts[f - 1] = mMaxGrey / 500f * f / mBlurKeyframes;
+                if (mMaxPrescaledBlurPixels > 0) {
+                    mRadii[f - 1] = blurRadiusAtFrame(f);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            BlurKeyframeCache.Entry cachedEntry = mCacheKey != null
+                    ? mKeyframeCache.get(mCacheKey)
+                    : null;
+            if (!loadPreview(cachedEntry)) {
+                return;
+            }
+
+            if (mKeyframesFromSharpPicture) {
+                if (mCacheKey != null && cachedEntry == null) {
+                    putInCache(0, 0, KEYFRAME_FORMAT, new ByteBuffer[0]);
+                }
+            } else if (mShaderBlur) {
+                if (isCancelled()) {
+                    return;
+                }
+                Bitmap blurredSourceBitmap = decodeBlurredSource();
+                if (isCancelled()) {
+                    if (blurredSourceBitmap != null) {
+                        blurredSourceBitmap.recycle();
+                    }
+                    return;
+                }
+                mBlurredSourceBitmap = blurredSourceBitmap;
+            } else if (cachedEntry != null && cachedEntry.keyframes.length == mBlurKeyframes) {
+                mKeyframeTiles = cachedEntry.keyframes;
+                mKeyframeWidth = cachedEntry.width;
+                mKeyframeHeight = cachedEntry.height;
+                mKeyframeTileSize = cachedEntry.tileSize;
+                mKeyframeFormat = cachedEntry.format;
+            } else if (!blurKeyframes()) {
+                return;
+            }
+            if (isCancelled()) {
+                return;
+            }
+            mKeyframesReady = true;
+            mCallbacks.requestRender();
+        }
+
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Decodes a tiny version of the whole image, used both to calculate image darkness to
+         * determine dim amount and as a preview while loading the rest. Returns false if the
+         * task was cancelled.
+         */
+        private boolean loadPreview(BlurKeyframeCache.Entry cachedEntry) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            int originalWidth = mBitmapRegionLoader.getWidth();
+            int originalHeight = mBitmapRegionLoader.getHeight();
+            Rect rect = new Rect(0, 0, originalWidth, originalHeight);
+            options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight, 64);
+            long startNanos = System.nanoTime();
+            Bitmap previewBitmap = mBitmapRegionLoader.decodeRegion(rect, options);
+            mMetrics.recordPhase(RenderMetrics.PHASE_DECODE, System.nanoTime() - startNanos);
+            int dimAmount;
+            if (cachedEntry != null) {
+                dimAmount = cachedEntry.dimAmount;
+            } else {
+                float darkness = 0;
+                if (previewBitmap != null) {
+                    ImageUtil.analyze(previewBitmap, mLuminanceAnalyzer);
+                    darkness = mLuminanceAnalyzer.getMeanLuminance();
+                }
+                dimAmount = mDemo
+                        ? DEMO_DIM
+                        : (int) (mMaxDimAmount * ((1 - DIM_RANGE) + DIM_RANGE * Math.sqrt(darkness)));
+            }
+            if (previewBitmap != null
+                    && (previewBitmap.getWidth() > mTileSize || previewBitmap.getHeight() > mTileSize)) {
+                // The preview must fit in a single tile to be used as a placeholder
+                float scale = Math.min(mTileSize * 1f / previewBitmap.getWidth(),
+                        mTileSize * 1f / previewBitmap.getHeight());
+                startNanos = System.nanoTime();
+                Bitmap scaledBitmap = Bitmap.createScaledBitmap(previewBitmap,
+                        Math.max(1, (int) (previewBitmap.getWidth() * scale)),
+                        Math.max(1, (int) (previewBitmap.getHeight() * scale)), true);
+                mMetrics.recordPhase(RenderMetrics.PHASE_SCALE, System.nanoTime() - startNanos);
+                if (scaledBitmap != previewBitmap) {
+                    previewBitmap.recycle();
+                }
+                previewBitmap = scaledBitmap;
+            }
+
+            // Opening the additional decoders for the sharp picture's tiles performs I/O
+            ParallelTileDecoder tileDecoder = new ParallelTileDecoder(mBitmapRegionLoader,
+                    mRequestRenderRunnable, mCompressTiles);
+            synchronized (this) {
+                if (mCancelled) {
+                    tileDecoder.destroy();
+                    if (previewBitmap != null) {
+                        previewBitmap.recycle();
+                    }
+                    return false;
+                }
+                mDimAmount = dimAmount;
+                mPreviewBitmap = previewBitmap;
+                mTileDecoder = tileDecoder;
+                mPreviewReady = true;
+            }
+            mCallbacks.requestRender();
+            return true;
+        }
+
+        private Bitmap decodeBlurredSource() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            int originalWidth = mBitmapRegionLoader.getWidth();
+            int originalHeight = mBitmapRegionLoader.getHeight();
+            Rect rect = new Rect(0, 0, originalWidth, originalHeight);
+            int sampleSizeTargetHeight = mScreenHeight / mBlurredSampleSizeForLoad;
+            int scaledHeight = Math.max(1, sampleSizeTargetHeight);
+            int scaledWidth = Math.max(1, Math.min(mMaxTextureSize,
+                    (int) (scaledHeight * originalWidth * 1f / originalHeight)));
+
+            options.inSampleSize = ImageUtil.calculateSampleSize(
+                    originalHeight, sampleSizeTargetHeight);
+            long startNanos = System.nanoTime();
+            Bitmap tempBitmap = mBitmapRegionLoader.decodeRegion(rect, options);
+            mMetrics.recordPhase(RenderMetrics.PHASE_DECODE, System.nanoTime() - startNanos);
+            if (tempBitmap == null || tempBitmap.getWidth() == 0 || tempBitmap.getHeight() == 0) {
+                Log.e(TAG, "BitmapRegionLoader failed to decode the region, rect="
+                        + rect.toShortString());
+                return null;
+            }
+
+            startNanos = System.nanoTime();
+            Bitmap scaledBitmap = Bitmap.createScaledBitmap(
+                    tempBitmap, scaledWidth, scaledHeight, true);
+            mMetrics.recordPhase(RenderMetrics.PHASE_SCALE, System.nanoTime() - startNanos);
+            if (tempBitmap != scaledBitmap) {
+                tempBitmap.recycle();
+            }
+            return scaledBitmap;
+        }
+
+        /**
+         * Returns false if the task was cancelled or the blur interrupted, in which case nothing
+         * is cached.
+         */
+        private boolean blurKeyframes() {
+            if (isCancelled()) {
+                return false;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            int originalWidth = mBitmapRegionLoader.getWidth();
+            int originalHeight = mBitmapRegionLoader.getHeight();
+            Rect rect = new Rect(0, 0, originalWidth, originalHeight);
+            int sampleSizeTargetHeight, scaledHeight, scaledWidth;
+            if (mMaxPrescaledBlur > 0) {
+                sampleSizeTargetHeight = mScreenHeight / mBlurredSampleSizeForLoad;
+            } else {
+                sampleSizeTargetHeight = mScreenHeight;
+            }
+
+            // Note that image width should be a multiple of 4 to avoid
+            // issues with RenderScript allocations.
+            scaledHeight = Math.max(2, MathUtil.floorEven(
+                    sampleSizeTargetHeight));
+            scaledWidth = Math.max(4, MathUtil.roundMult4(
+                    (int) (scaledHeight * originalWidth * 1f / originalHeight)));
+
+            // To blur, first load the entire bitmap region, but at a very large
+            // sample size that's appropriate for the final blurred image
+            options.inSampleSize = ImageUtil.calculateSampleSize(
+                    originalHeight, sampleSizeTargetHeight);
+            long startNanos = System.nanoTime();
+            Bitmap tempBitmap = mBitmapRegionLoader.decodeRegion(rect, options);
+            mMetrics.recordPhase(RenderMetrics.PHASE_DECODE, System.nanoTime() - startNanos);
+
+            if (tempBitmap == null
+                    || tempBitmap.getWidth() == 0 || tempBitmap.getHeight() == 0) {
+                Log.e(TAG, "BitmapRegionLoader failed to decode the region, rect="
+                        + rect.toShortString());
+                return true;
+            }
+            if (isCancelled()) {
+                tempBitmap.recycle();
+                return false;
+            }
+
+            // Next, create a scaled down version of the bitmap so that the blur radius
+            // looks appropriate (tempBitmap will likely be bigger than the final
+            // blurred bitmap, and thus the blur may look smaller if we just used
+            // tempBitmap as the final blurred bitmap).
+
+            // Note that image width should be a multiple of 4 to avoid
+            // issues with RenderScript allocations.
+            startNanos = System.nanoTime();
+            Bitmap scaledBitmap = Bitmap.createScaledBitmap(
+                    tempBitmap, scaledWidth, scaledHeight, true);
+            mMetrics.recordPhase(RenderMetrics.PHASE_SCALE, System.nanoTime() - startNanos);
+            if (tempBitmap != scaledBitmap) {
+                tempBitmap.recycle();
+            }
+            if (isCancelled()) {
+                scaledBitmap.recycle();
+                return false;
+            }
+
+            // And finally, create the blurred keyframes, each one derived from the previous
+            // one, and convert them to tiles ready to be uploaded
+            final int format = KEYFRAME_FORMAT;
+            final int imageBytes = RawTileFormat.imageBytes(scaledWidth, scaledHeight,
+                    mTileSize, format);
+            final int[] pixels = new int[scaledWidth * scaledHeight];
+            final ByteBuffer[] keyframeTiles = new ByteBuffer[mBlurKeyframes];
+            startNanos = System.nanoTime();
+            Blurrer blurrer = createBlurrer(scaledBitmap);
+            blurrer.blurKeyframes(mRadii, mDesaturateAmounts,
+                    new Blurrer.KeyframeCallback() {
+                        @Override
+                        public boolean onKeyframe(int keyframe, Bitmap bitmap) {
+                            int width = bitmap.getWidth();
+                            int height = bitmap.getHeight();
+                            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+                            keyframeTiles[keyframe] = ByteBuffer.allocateDirect(imageBytes);
+                            RawTileFormat.writeTiles(pixels, width, height, mTileSize, format,
+                                    keyframeTiles[keyframe]);
+                            keyframeTiles[keyframe].flip();
+                            return !isCancelled();
+                        }
+                    });
+            blurrer.destroy();
+            mMetrics.recordPhase(RenderMetrics.PHASE_BLUR, System.nanoTime() - startNanos);
+            scaledBitmap.recycle();
+            if (isCancelled()) {
+                // Some keyframes may be missing, so they must not be cached
+                return false;
+            }
+            for (ByteBuffer keyframe : keyframeTiles) {
+                if (keyframe == null) {
+                    // The blur was interrupted, so neither upload nor cache a partial set
+                    return false;
+                }
+            }
+
+            mKeyframeTiles = keyframeTiles;
+            mKeyframeWidth = scaledWidth;
+            mKeyframeHeight = scaledHeight;
+            mKeyframeTileSize = mTileSize;
+            mKeyframeFormat = format;
+            if (mCacheKey != null) {
+                putInCache(scaledWidth, scaledHeight, format, keyframeTiles);
+            }
+            return true;
+        }
+
+        /**
+         * Caches the given keyframes unless the task was cancelled. Tasks are cancelled before
+         * the cache is destroyed, so checking under the task's lock keeps writes from reaching
+         * a destroyed cache.
+         */
+        private synchronized void putInCache(int width, int height, int format,
+                ByteBuffer[] keyframes) {
+            if (!mCancelled) {
+                mKeyframeCache.put(mCacheKey, mDimAmount, width, height, mTileSize, format,
+                        keyframes);
+            }
+        }
+
+        /**
+         * Stops handing results to the GL thread and releases any that haven't been taken.
+         * Work in progress on the background thread stops at its next stage or keyframe.
+         */
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mTileDecoder != null) {
+                mTileDecoder.destroy();
+                mTileDecoder = null;
+            }
+            if (mPreviewBitmap != null) {
+                mPreviewBitmap.recycle();
+                mPreviewBitmap = null;
+            }
+        }
+    }
+
+    /**
+     * Destroys the given loader on the load thread, as destroying it waits for any region still
+     * being decoded from it, and after any load task still using it has stopped.
+     */
+    private void destroyInBackground(final BitmapRegionLoader bitmapRegionLoader) {
+        try {
+            mLoadExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    bitmapRegionLoader.destroy();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Only happens once the renderer has been destroyed
+            bitmapRegionLoader.destroy();
         }
     }
 
     public void destroy() {
+        mHandler.removeCallbacks(mRequestRenderRunnable);
         mCurrentGLPictureSet.destroyPictures();
         mNextGLPictureSet.destroyPictures();
+        // Cancelled load tasks stop at their next stage, after which the loaders are destroyed
+        mLoadExecutorService.shutdown();
+        mKeyframeCache.destroy();
     }
 
     public boolean isBlurred() {
@@ -562,14 +1345,6 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         mBlurAnimator
                 .to(isBlurred ? mBlurKeyframes : 0)
                 .withDuration(BLUR_ANIMATION_DURATION * (mDemoMode ? 5 : 1))
-                .withEndListener(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (isBlurred && artDetailMode) {
-                            System.gc();
-                        }
-                    }
-                })
                 .start();
         mCallbacks.requestRender();
     }
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.opengl.ETC1Util;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes rows of tiles concurrently using a bounded pool of {@link BitmapRegionLoader}s over the
+ * same image. {@link BitmapRegionLoader#decodeRegion} is synchronized, so a single loader can only
+ * ever decode one tile at a time. Tiles can optionally be ETC1 compressed on the decoding threads.
+ */
+class ParallelTileDecoder {
+    private static final int MAX_DECODERS = 4;
+
+    /**
+     * A decoded tile, held either as a bitmap or as ETC1 compressed data.
+     */
+    static class Tile {
+        private Bitmap mBitmap;
+        private ETC1Util.ETC1Texture mCompressedTexture;
+
+        Tile(Bitmap bitmap) {
+            mBitmap = bitmap;
+        }
+
+        Tile(ETC1Util.ETC1Texture compressedTexture) {
+            mCompressedTexture = compressedTexture;
+        }
+
+        int getByteCount() {
+            return mBitmap != null
+                    ? mBitmap.getByteCount()
+                    : mCompressedTexture.getData().capacity();
+        }
+
+        /**
+         * Uploads the tile to a new texture and returns its handle. Must be called on the GL
+         * thread.
+         */
+        int loadTexture() {
+            if (mBitmap != null) {
+                return GLUtil.loadTexture(mBitmap);
+            }
+            return GLUtil.loadTexture(mCompressedTexture,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5);
+        }
+
+        void recycle() {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+            mCompressedTexture = null;
+        }
+    }
+
+    private final ExecutorService mExecutorService;
+    private final BlockingQueue<BitmapRegionLoader> mLoaders;
+    private final List<BitmapRegionLoader> mDuplicateLoaders = new ArrayList<>();
+    private final int mWidth;
+    private final int mHeight;
+    private final Runnable mOnRowDecodedListener;
+    private final boolean mCompressTiles;
+    // Guarded by mLoaders
+    private boolean mDestroyed;
+
+    /**
+     * Opens additional decoders over the same image, which performs I/O.
+     *
+     * @param bitmapRegionLoader    the loader to decode from. It is used as one of the pool's
+     *                              decoders but is not destroyed by {@link #destroy()}.
+     * @param onRowDecodedListener  optional listener called on a background thread each time a
+     *                              row has finished decoding
+     * @param compressTiles         whether to ETC1 compress tiles, which must only be set if
+     *                              {@link GLPicture#isEtc1Supported()}
+     */
+    ParallelTileDecoder(BitmapRegionLoader bitmapRegionLoader, Runnable onRowDecodedListener,
+            boolean compressTiles) {
+        mWidth = bitmapRegionLoader.getWidth();
+        mHeight = bitmapRegionLoader.getHeight();
+        mOnRowDecodedListener = onRowDecodedListener;
+        mCompressTiles = compressTiles;
+        int decoders = Math.max(1,
+                Math.min(MAX_DECODERS, Runtime.getRuntime().availableProcessors()));
+        mLoaders = new ArrayBlockingQueue<>(decoders);
+        mLoaders.add(bitmapRegionLoader);
+        for (int i = 1; i < decoders; i++) {
+            BitmapRegionLoader duplicate = bitmapRegionLoader.duplicate();
+            if (duplicate == null) {
+                break;
+            }
+            mDuplicateLoaders.add(duplicate);
+            mLoaders.add(duplicate);
+        }
+        mExecutorService = Executors.newFixedThreadPool(mLoaders.size());
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the number of rows that can usefully be decoded at the same time.
+     */
+    int getParallelism() {
+        return mDuplicateLoaders.size() + 1;
+    }
+
+    /**
+     * Asynchronously decodes the given regions at the given sample size. Tiles that fail to
+     * decode are returned as null.
+     */
+    Future<Tile[]> decodeRow(final Rect[] rects, final int sampleSize) {
+        FutureTask<Tile[]> task = new FutureTask<Tile[]>(new Callable<Tile[]>() {
+            @Override
+            public Tile[] call() throws InterruptedException {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                if (mCompressTiles) {
+                    // The ETC1 encoder takes 565 pixels, and can't represent alpha anyway
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                }
+                Bitmap[] bitmaps = new Bitmap[rects.length];
+                BitmapRegionLoader loader = mLoaders.take();
+                long startNanos = System.nanoTime();
+                try {
+                    for (int i = 0; i < rects.length; i++) {
+                        if (Thread.interrupted()) {
+                            // The decoder is being destroyed, so stop after the current tile
+                            recycle(bitmaps);
+                            throw new InterruptedException();
+                        }
+                        bitmaps[i] = loader.decodeRegion(rects[i], options);
+                    }
+                } finally {
+                    release(loader);
+                }
+                if (Thread.interrupted()) {
+                    // Nothing will take the tiles of a destroyed decoder
+                    recycle(bitmaps);
+                    throw new InterruptedException();
+                }
+                RenderMetrics.getInstance().recordPhase(RenderMetrics.PHASE_DECODE,
+                        System.nanoTime() - startNanos);
+
+                Tile[] tiles = new Tile[rects.length];
+                for (int i = 0; i < rects.length; i++) {
+                    if (bitmaps[i] == null) {
+                        continue;
+                    }
+                    if (mCompressTiles && bitmaps[i].getConfig() == Bitmap.Config.RGB_565) {
+                        tiles[i] = new Tile(compress(bitmaps[i]));
+                        bitmaps[i].recycle();
+                    } else {
+                        tiles[i] = new Tile(bitmaps[i]);
+                    }
+                }
+                return tiles;
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (mOnRowDecodedListener != null && !isCancelled()) {
+                    mOnRowDecodedListener.run();
+                }
+            }
+        };
+        mExecutorService.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns a loader to the pool, or destroys it if it is a duplicate and the decoder has been
+     * destroyed while it was in use.
+     */
+    private void release(BitmapRegionLoader loader) {
+        synchronized (mLoaders) {
+            if (!mDestroyed) {
+                mLoaders.add(loader);
+                return;
+            }
+        }
+        if (mDuplicateLoaders.contains(loader)) {
+            loader.destroy();
+        }
+    }
+
+    private static void recycle(Bitmap[] bitmaps) {
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    private static ETC1Util.ETC1Texture compress(Bitmap bitmap) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(bitmap.getByteCount())
+                .order(ByteOrder.nativeOrder());
+        bitmap.copyPixelsToBuffer(pixels);
+        pixels.position(0);
+        return ETC1Util.compressTexture(pixels, bitmap.getWidth(), bitmap.getHeight(),
+                2, bitmap.getRowBytes());
+    }
+
+    /**
+     * Stops decoding and destroys the additional decoders without blocking, so it can be called
+     * on the GL thread. {@link BitmapRegionLoader#decodeRegion} can't be interrupted, so decoders
+     * still in use are destroyed by their row once its current tile has been decoded.
+     */
+    void destroy() {
+        List<BitmapRegionLoader> idleLoaders = new ArrayList<>();
+        synchronized (mLoaders) {
+            if (mDestroyed) {
+                return;
+            }
+            mDestroyed = true;
+            mLoaders.drainTo(idleLoaders);
+        }
+        mExecutorService.shutdownNow();
+        for (BitmapRegionLoader loader : idleLoaders) {
+            if (mDuplicateLoaders.contains(loader)) {
+                loader.destroy();
+            }
+        }
+    }
+}
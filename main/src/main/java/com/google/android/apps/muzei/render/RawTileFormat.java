@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Rect;
+import android.opengl.GLES20;
+
+import com.google.android.apps.muzei.util.MathUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of raw, uncompressed pixel tiles that can be handed straight to
+ * {@link GLES20#glTexImage2D} without going through a {@link android.graphics.Bitmap}.
+ *
+ * <p>An image is split into the same tile grid {@link GLPicture} uses, and tiles are stored one
+ * after another in {@link GLPicture}'s texture order. Within a tile, rows are stored top to
+ * bottom with each row padded to a multiple of 4 bytes, matching the default
+ * {@code GL_UNPACK_ALIGNMENT}.
+ */
+class RawTileFormat {
+    static final int FORMAT_RGBA_8888 = 0;
+    static final int FORMAT_RGB_565 = 1;
+
+    static int bytesPerPixel(int format) {
+        return format == FORMAT_RGB_565 ? 2 : 4;
+    }
+
+    static int rowStride(int width, int format) {
+        return MathUtil.roundUpMult4(width * bytesPerPixel(format));
+    }
+
+    static int glFormat(int format) {
+        return format == FORMAT_RGB_565 ? GLES20.GL_RGB : GLES20.GL_RGBA;
+    }
+
+    static int glType(int format) {
+        return format == FORMAT_RGB_565
+                ? GLES20.GL_UNSIGNED_SHORT_5_6_5
+                : GLES20.GL_UNSIGNED_BYTE;
+    }
+
+    /**
+     * Returns the number of bytes needed to store all tiles of an image.
+     */
+    static int imageBytes(int width, int height, int tileSize, int format) {
+        int cols = MathUtil.intDivideRoundUp(width, tileSize);
+        int rows = MathUtil.intDivideRoundUp(height, tileSize);
+        Rect rect = new Rect();
+        int bytes = 0;
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                GLPicture.getTileRect(x, y, rows, tileSize, width, height, rect);
+                bytes += rowStride(rect.width(), format) * rect.height();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the tiles of an image given as packed ARGB pixels into {@code out}, starting at its
+     * current position.
+     */
+    static void writeTiles(int[] argb, int width, int height, int tileSize, int format,
+            ByteBuffer out) {
+        // 565 pixels are read by GL as native endian shorts
+        out.order(ByteOrder.nativeOrder());
+        int cols = MathUtil.intDivideRoundUp(width, tileSize);
+        int rows = MathUtil.intDivideRoundUp(height, tileSize);
+        Rect rect = new Rect();
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                GLPicture.getTileRect(x, y, rows, tileSize, width, height, rect);
+                int padding = rowStride(rect.width(), format)
+                        - rect.width() * bytesPerPixel(format);
+                for (int row = rect.top; row < rect.bottom; row++) {
+                    for (int col = rect.left; col < rect.right; col++) {
+                        int p = argb[row * width + col];
+                        if (format == FORMAT_RGB_565) {
+                            out.putShort((short) (((p >> 8) & 0xf800)
+                                    | ((p >> 5) & 0x07e0)
+                                    | ((p >> 3) & 0x001f)));
+                        } else {
+                            out.put((byte) (p >> 16));
+                            out.put((byte) (p >> 8));
+                            out.put((byte) p);
+                            out.put((byte) (p >>> 24));
+                        }
+                    }
+                    for (int i = 0; i < padding; i++) {
+                        out.put((byte) 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private RawTileFormat() {
+    }
+}
@@ -20,13 +20,19 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
-import android.support.media.ExifInterface;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkDao;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.util.ImageMetadata;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 public class RealRenderController extends RenderController {
     private static final String TAG = "RealRenderController";
@@ -55,30 +61,65 @@ public class RealRenderController extends RenderController {
 
     @Override
     protected BitmapRegionLoader openDownloadedCurrentArtwork(boolean forceReload) {
+        // The stream, any duplicates of it and the cache key must all come from this one row
+        Artwork artwork = getDownloadedCurrentArtwork();
         // Load the stream
         try {
             // Check if there's rotation
             int rotation = 0;
-            try (InputStream in = mContext.getContentResolver().openInputStream(MuzeiContract.Artwork.CONTENT_URI)) {
-                if (in == null) {
-                    return null;
+            if (artwork != null) {
+                if (!artwork.hasMetadata()) {
+                    // Downloaded before metadata was stored, so probe it once now
+                    artwork = ImageMetadata.probeAndStore(mContext, artwork);
                 }
-                ExifInterface exifInterface = new ExifInterface(in);
-                int orientation = exifInterface.getAttributeInt(
-                        ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-                switch (orientation) {
-                    case ExifInterface.ORIENTATION_ROTATE_90: rotation = 90; break;
-                    case ExifInterface.ORIENTATION_ROTATE_180: rotation = 180; break;
-                    case ExifInterface.ORIENTATION_ROTATE_270: rotation = 270; break;
-                }
-            } catch (IOException|NumberFormatException|StackOverflowError e) {
-                Log.w(TAG, "Couldn't open EXIF interface on artwork", e);
+                rotation = artwork.rotation;
+            }
+            // The loader is duplicated later on to decode tiles in parallel, so open this
+            // artwork's own URI rather than one that resolves to whatever is current by then
+            final Uri artworkUri = artwork != null
+                    ? artwork.getContentUri()
+                    : MuzeiContract.Artwork.CONTENT_URI;
+            BitmapRegionLoader loader = BitmapRegionLoader.newInstance(
+                    new BitmapRegionLoader.InputStreamOpener() {
+                        @Override
+                        public InputStream open() throws IOException {
+                            return mContext.getContentResolver().openInputStream(artworkUri);
+                        }
+                    }, rotation);
+            if (loader != null && artwork != null) {
+                loader.setCacheKey("artwork_" + artwork.id + "_" + rotation);
             }
-            return BitmapRegionLoader.newInstance(
-                    mContext.getContentResolver().openInputStream(MuzeiContract.Artwork.CONTENT_URI), rotation);
+            return loader;
         } catch (IOException e) {
             Log.e(TAG, "Error loading image", e);
             return null;
         }
     }
+
+    /**
+     * Returns the latest artwork whose image has been downloaded, as
+     * {@link MuzeiContract.Artwork#CONTENT_URI} would resolve it, or the current artwork if
+     * none has.
+     */
+    private Artwork getDownloadedCurrentArtwork() {
+        ArtworkDao artworkDao = MuzeiDatabase.getInstance(mContext).artworkDao();
+        Artwork currentArtwork = artworkDao.getCurrentArtworkBlocking();
+        if (currentArtwork == null || isDownloaded(currentArtwork)) {
+            return currentArtwork;
+        }
+        List<Artwork> artworkList = artworkDao.getArtworkBlocking();
+        if (artworkList != null) {
+            for (Artwork artwork : artworkList) {
+                if (isDownloaded(artwork)) {
+                    return artwork;
+                }
+            }
+        }
+        return currentArtwork;
+    }
+
+    private boolean isDownloaded(Artwork artwork) {
+        File file = MuzeiProvider.getCacheFileForArtworkUri(mContext, artwork.id);
+        return file != null && file.exists();
+    }
 }
@@ -40,13 +40,13 @@ public abstract class RenderController {
                 public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
                     if (Prefs.PREF_BLUR_AMOUNT.equals(key)) {
                         mRenderer.recomputeMaxPrescaledBlurPixels();
-                        throttledForceReloadCurrentArtwork();
+                        reloadOrRedrawForBlurChange();
                     } else if (Prefs.PREF_DIM_AMOUNT.equals(key)) {
                         mRenderer.recomputeMaxDimAmount();
                         throttledForceReloadCurrentArtwork();
                     } else if (Prefs.PREF_GREY_AMOUNT.equals(key)) {
                         mRenderer.recomputeGreyAmount();
-                        throttledForceReloadCurrentArtwork();
+                        reloadOrRedrawForBlurChange();
                     }
                 }
             };
@@ -68,6 +68,15 @@ public abstract class RenderController {
         mExecutorService.shutdownNow();
     }
 
+    private void reloadOrRedrawForBlurChange() {
+        if (mRenderer.isShaderBlur()) {
+            // Blur and grey are applied at draw time, so there's nothing to reload
+            mCallbacks.requestRender();
+        } else {
+            throttledForceReloadCurrentArtwork();
+        }
+    }
+
     private void throttledForceReloadCurrentArtwork() {
         mThrottledForceReloadHandler.removeMessages(0);
         mThrottledForceReloadHandler.sendEmptyMessageDelayed(0, 250);
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+
+/**
+ * Process wide counters describing what rendering costs: frame draw times, tiles drawn, texture
+ * memory, dropped frames while animating and the duration of each phase of loading an artwork.
+ * Recording is cheap enough to always be enabled. The collected metrics can be read with
+ * {@link #dump(PrintWriter)}, which backs both the wallpaper service's dumpsys output and the
+ * debug settings screen.
+ */
+public class RenderMetrics {
+    public static final int PHASE_DECODE = 0;
+    public static final int PHASE_SCALE = 1;
+    public static final int PHASE_BLUR = 2;
+    public static final int PHASE_UPLOAD = 3;
+    public static final int PHASE_FIRST_PIXEL = 4;
+    public static final int PHASE_FULLY_LOADED = 5;
+
+    private static final String[] PHASE_NAMES = {
+            "decode", "scale", "blur", "upload", "time to first pixel", "time to fully loaded"
+    };
+
+    // Upper bounds of the draw time histogram buckets, in milliseconds. The last bucket
+    // catches everything slower.
+    private static final int[] DRAW_TIME_BUCKETS_MS = {2, 4, 8, 12, 16, 24, 33, 50, 100};
+
+    // Frames are assumed to be displayed at 60Hz
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    private static RenderMetrics sInstance = new RenderMetrics();
+
+    public static RenderMetrics getInstance() {
+        return sInstance;
+    }
+
+    private long mStartTime;
+    private long mFrames;
+    private long mAnimatingFrames;
+    private long mDroppedFrames;
+    private long mLastAnimatingFrameStartNanos;
+    private final long[] mDrawTimeHistogram = new long[DRAW_TIME_BUCKETS_MS.length + 1];
+    private long mTotalDrawNanos;
+    private long mMaxDrawNanos;
+
+    private int mTilesDrawnThisFrame;
+    private int mLastFrameTilesDrawn;
+    private long mTotalTilesDrawn;
+
+    private long mTextureBytes;
+    private long mMaxTextureBytes;
+
+    private final long[] mPhaseCounts = new long[PHASE_NAMES.length];
+    private final long[] mPhaseTotalNanos = new long[PHASE_NAMES.length];
+    private final long[] mPhaseMaxNanos = new long[PHASE_NAMES.length];
+    private final long[] mPhaseLastNanos = new long[PHASE_NAMES.length];
+
+    private RenderMetrics() {
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a drawn frame. {@code animating} should be true if the frame is part of an
+     * animation, in which case gaps between consecutive frames are counted as dropped frames.
+     */
+    public synchronized void onFrameDrawn(long startNanos, long endNanos, boolean animating) {
+        long drawNanos = endNanos - startNanos;
+        mFrames++;
+        mTotalDrawNanos += drawNanos;
+        mMaxDrawNanos = Math.max(mMaxDrawNanos, drawNanos);
+        long drawMillis = drawNanos / 1000000;
+        int bucket = 0;
+        while (bucket < DRAW_TIME_BUCKETS_MS.length && drawMillis >= DRAW_TIME_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mDrawTimeHistogram[bucket]++;
+
+        if (animating) {
+            mAnimatingFrames++;
+            if (mLastAnimatingFrameStartNanos != 0) {
+                long interval = startNanos - mLastAnimatingFrameStartNanos;
+                if (interval > FRAME_INTERVAL_NANOS * 3 / 2) {
+                    mDroppedFrames += Math.round(interval * 1.0 / FRAME_INTERVAL_NANOS) - 1;
+                }
+            }
+            mLastAnimatingFrameStartNanos = startNanos;
+        } else {
+            mLastAnimatingFrameStartNanos = 0;
+        }
+
+        mLastFrameTilesDrawn = mTilesDrawnThisFrame;
+        mTotalTilesDrawn += mTilesDrawnThisFrame;
+        mTilesDrawnThisFrame = 0;
+    }
+
+    public synchronized void onTilesDrawn(int tiles) {
+        mTilesDrawnThisFrame += tiles;
+    }
+
+    /**
+     * Records textures being created (positive) or deleted (negative).
+     */
+    public synchronized void addTextureBytes(long bytes) {
+        mTextureBytes += bytes;
+        mMaxTextureBytes = Math.max(mMaxTextureBytes, mTextureBytes);
+    }
+
+    /**
+     * Records one occurrence of the given load phase, one of the {@code PHASE_} constants.
+     */
+    public synchronized void recordPhase(int phase, long nanos) {
+        mPhaseCounts[phase]++;
+        mPhaseTotalNanos[phase] += nanos;
+        mPhaseMaxNanos[phase] = Math.max(mPhaseMaxNanos[phase], nanos);
+        mPhaseLastNanos[phase] = nanos;
+    }
+
+    /**
+     * Clears everything except the currently resident texture memory.
+     */
+    public synchronized void reset() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mFrames = 0;
+        mAnimatingFrames = 0;
+        mDroppedFrames = 0;
+        mLastAnimatingFrameStartNanos = 0;
+        for (int i = 0; i < mDrawTimeHistogram.length; i++) {
+            mDrawTimeHistogram[i] = 0;
+        }
+        mTotalDrawNanos = 0;
+        mMaxDrawNanos = 0;
+        mLastFrameTilesDrawn = 0;
+        mTotalTilesDrawn = 0;
+        mMaxTextureBytes = mTextureBytes;
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            mPhaseCounts[i] = 0;
+            mPhaseTotalNanos[i] = 0;
+            mPhaseMaxNanos[i] = 0;
+            mPhaseLastNanos[i] = 0;
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Render metrics, collected over the last "
+                + (SystemClock.elapsedRealtime() - mStartTime) / 1000 + "s:");
+        writer.println(String.format(Locale.US,
+                "  Frames: %d, of which %d animating with %d dropped",
+                mFrames, mAnimatingFrames, mDroppedFrames));
+        writer.println(String.format(Locale.US, "  Draw time: average %.2fms, max %.2fms",
+                mFrames > 0 ? mTotalDrawNanos / 1e6 / mFrames : 0, mMaxDrawNanos / 1e6));
+        for (int i = 0; i < mDrawTimeHistogram.length; i++) {
+            String label = i < DRAW_TIME_BUCKETS_MS.length
+                    ? "< " + DRAW_TIME_BUCKETS_MS[i] + "ms"
+                    : ">= " + DRAW_TIME_BUCKETS_MS[DRAW_TIME_BUCKETS_MS.length - 1] + "ms";
+            writer.println(String.format(Locale.US, "    %-8s %d", label, mDrawTimeHistogram[i]));
+        }
+        writer.println(String.format(Locale.US, "  Tiles drawn: %d last frame, %.1f average",
+                mLastFrameTilesDrawn, mFrames > 0 ? mTotalTilesDrawn * 1f / mFrames : 0));
+        writer.println(String.format(Locale.US, "  Texture memory: %d KB resident, %d KB max",
+                mTextureBytes / 1024, mMaxTextureBytes / 1024));
+        writer.println("  Load phases (count, average, max, last):");
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            writer.println(String.format(Locale.US, "    %-21s %4d %8.1fms %8.1fms %8.1fms",
+                    PHASE_NAMES[i], mPhaseCounts[i],
+                    mPhaseCounts[i] > 0 ? mPhaseTotalNanos[i] / 1e6 / mPhaseCounts[i] : 0,
+                    mPhaseMaxNanos[i] / 1e6, mPhaseLastNanos[i] / 1e6));
+        }
+    }
+
+    public String dumpToString() {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter writer = new PrintWriter(stringWriter);
+        dump(writer);
+        writer.flush();
+        return stringWriter.toString();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.settings;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.TextView;
+
+import com.google.android.apps.muzei.render.RenderMetrics;
+
+import net.nurik.roman.muzei.R;
+
+/**
+ * Debug screen showing the wallpaper's {@link RenderMetrics}, refreshed every second.
+ */
+public class RenderMetricsActivity extends AppCompatActivity {
+    private static final int REFRESH_INTERVAL_MILLIS = 1000;
+
+    private Handler mHandler = new Handler();
+    private TextView mMetricsView;
+
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.render_metrics_activity);
+
+        Toolbar appBar = (Toolbar) findViewById(R.id.app_bar);
+        appBar.setNavigationOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                onNavigateUp();
+            }
+        });
+        appBar.inflateMenu(R.menu.render_metrics);
+        appBar.setOnMenuItemClickListener(new Toolbar.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                if (item.getItemId() == R.id.action_reset_metrics) {
+                    RenderMetrics.getInstance().reset();
+                    mMetricsView.setText(RenderMetrics.getInstance().dumpToString());
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        mMetricsView = (TextView) findViewById(R.id.metrics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRefreshRunnable.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefreshRunnable);
+    }
+
+    private Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsView.setText(RenderMetrics.getInstance().dumpToString());
+            mHandler.postDelayed(mRefreshRunnable, REFRESH_INTERVAL_MILLIS);
+        }
+    };
+}
@@ -46,6 +46,7 @@ import com.google.android.apps.muzei.render.MuzeiRendererFragment;
 import com.google.android.apps.muzei.util.DrawInsetsFrameLayout;
 import com.google.firebase.analytics.FirebaseAnalytics;
 
+import net.nurik.roman.muzei.BuildConfig;
 import net.nurik.roman.muzei.R;
 
 import org.greenrobot.eventbus.EventBus;
@@ -242,6 +243,11 @@ public class SettingsActivity extends AppCompatActivity
                         FirebaseAnalytics.getInstance(SettingsActivity.this).logEvent("about_open", null);
                         startActivity(new Intent(SettingsActivity.this, AboutActivity.class));
                         return true;
+
+                    case R.id.action_render_metrics:
+                        startActivity(new Intent(SettingsActivity.this,
+                                RenderMetricsActivity.class));
+                        return true;
                 }
 
                 Fragment currentFragment = getSupportFragmentManager().findFragmentById(
@@ -362,6 +368,7 @@ public class SettingsActivity extends AppCompatActivity
             mAppBar.inflateMenu(menuResId);
         }
         mAppBar.inflateMenu(R.menu.settings);
+        mAppBar.getMenu().findItem(R.id.action_render_metrics).setVisible(BuildConfig.DEBUG);
     }
 
     public interface SettingsActivityMenuListener {
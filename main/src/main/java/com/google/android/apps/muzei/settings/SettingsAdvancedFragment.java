@@ -142,6 +142,20 @@ public class SettingsAdvancedFragment extends Fragment
         );
         mBlurOnLockScreenCheckBox.setChecked(!Prefs.getSharedPreferences(getContext())
                 .getBoolean(Prefs.PREF_DISABLE_BLUR_WHEN_LOCKED, false));
+        CheckBox mShaderBlurCheckBox = (CheckBox) rootView.findViewById(
+                R.id.shader_blur_checkbox);
+        mShaderBlurCheckBox.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton button, boolean checked) {
+                        Prefs.getSharedPreferences(getContext()).edit()
+                                .putBoolean(Prefs.PREF_SHADER_BLUR, checked)
+                                .apply();
+                    }
+                }
+        );
+        mShaderBlurCheckBox.setChecked(Prefs.getSharedPreferences(getContext())
+                .getBoolean(Prefs.PREF_SHADER_BLUR, false));
         return rootView;
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Downloads a URL to a file. The body is streamed to a partial file next to the destination while
+ * its SHA-256 hash is computed, then renamed over the destination once complete, so the
+ * destination never holds a partial download. A failed download keeps its partial file along
+ * with the response's ETag so that the next attempt can resume it with an HTTP range request,
+ * provided the server's copy hasn't changed.
+ */
+public class ArtworkDownloader {
+    private static final String TAG = "ArtworkDownloader";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String VALIDATOR_SUFFIX = ".etag";
+
+    private final OkHttpClient mClient;
+
+    public ArtworkDownloader(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Downloads the given URL to the given file, resuming a previous attempt if possible.
+     *
+     * @param expectedSha256 optional hex encoded SHA-256 hash the downloaded file must match
+     * @return the hex encoded SHA-256 hash of the downloaded file
+     * @throws IOException if the download failed or didn't match {@code expectedSha256}
+     */
+    public String download(URL url, File destination, @Nullable String expectedSha256)
+            throws IOException {
+        File partialFile = new File(destination.getPath() + PARTIAL_SUFFIX);
+        File validatorFile = new File(destination.getPath() + VALIDATOR_SUFFIX);
+        MessageDigest digest = newSha256Digest();
+
+        String validator = readValidator(validatorFile);
+        long offset = 0;
+        if (validator != null && partialFile.exists()) {
+            // Catch the hash up with what was already downloaded
+            offset = partialFile.length();
+            try (InputStream in = new FileInputStream(partialFile)) {
+                byte[] chunk = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    digest.update(chunk, 0, read);
+                }
+            }
+        }
+
+        Request.Builder request = new Request.Builder().url(url);
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-")
+                    .header("If-Range", validator);
+        }
+        boolean restart;
+        Response response = mClient.newCall(request.build()).execute();
+        try (ResponseBody body = response.body()) {
+            int responseCode = response.code();
+            boolean resuming = offset > 0 && responseCode == 206
+                    && String.valueOf(response.header("Content-Range"))
+                            .startsWith("bytes " + offset + "-");
+            restart = offset > 0 && (responseCode == 416 || (responseCode == 206 && !resuming));
+            if (!restart) {
+                if (!(responseCode >= 200 && responseCode < 300) || body == null) {
+                    throw new IOException("HTTP error response " + responseCode);
+                }
+                if (!resuming) {
+                    if (offset > 0) {
+                        Log.d(TAG, "Server didn't resume " + url + ", starting over");
+                    }
+                    digest.reset();
+                }
+                saveValidator(response, validatorFile);
+                try (BufferedSink sink = Okio.buffer(resuming
+                        ? Okio.appendingSink(partialFile)
+                        : Okio.sink(partialFile))) {
+                    BufferedSource source = body.source();
+                    byte[] chunk = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = source.read(chunk)) != -1) {
+                        digest.update(chunk, 0, read);
+                        sink.write(chunk, 0, read);
+                    }
+                }
+            }
+        }
+        if (restart) {
+            // The partial file doesn't match the server's copy anymore
+            deletePartial(partialFile, validatorFile);
+            return download(url, destination, expectedSha256);
+        }
+
+        String sha256 = toHex(digest.digest());
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+            deletePartial(partialFile, validatorFile);
+            throw new IOException("Downloaded " + url + " with hash " + sha256
+                    + ", expected " + expectedSha256);
+        }
+        if (!partialFile.renameTo(destination)) {
+            throw new IOException("Unable to move download to " + destination);
+        }
+        validatorFile.delete();
+        return sha256;
+    }
+
+    private static void deletePartial(File partialFile, File validatorFile) {
+        partialFile.delete();
+        validatorFile.delete();
+    }
+
+    private static void saveValidator(Response response, File validatorFile) throws IOException {
+        // Weak ETags can't be used to resume as the bytes may differ
+        String validator = response.header("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = response.header("Last-Modified");
+        }
+        if (validator != null) {
+            try (BufferedSink sink = Okio.buffer(Okio.sink(validatorFile))) {
+                sink.writeUtf8(validator);
+            }
+        } else if (validatorFile.exists()) {
+            validatorFile.delete();
+        }
+    }
+
+    @Nullable
+    private static String readValidator(File validatorFile) {
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        try (BufferedSource source = Okio.buffer(Okio.source(validatorFile))) {
+            return source.readUtf8();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            if ((0xff & b) < 0x10) {
+                hex.append("0");
+            }
+            hex.append(Integer.toHexString(0xff & b));
+        }
+        return hex.toString();
+    }
+}
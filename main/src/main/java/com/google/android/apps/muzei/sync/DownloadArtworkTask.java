@@ -16,18 +16,19 @@
 
 package com.google.android.apps.muzei.sync;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import com.google.android.apps.muzei.api.MuzeiContract;
 import com.google.android.apps.muzei.event.ArtworkLoadingStateChangedEvent;
+import com.google.android.apps.muzei.provider.ArtworkBlobStore;
+import com.google.android.apps.muzei.provider.ArtworkDerivatives;
+import com.google.android.apps.muzei.provider.MuzeiProvider;
 import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.util.ImageMetadata;
 
 import org.greenrobot.eventbus.EventBus;
 
@@ -36,13 +37,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.List;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
 
 public class DownloadArtworkTask extends AsyncTask<Void, Void, Boolean> {
     private static final String TAG = "DownloadArtworkTask";
@@ -60,38 +61,81 @@ public class DownloadArtworkTask extends AsyncTask<Void, Void, Boolean> {
     @Override
     protected Boolean doInBackground(Void... voids) {
         Artwork artwork = MuzeiDatabase.getInstance(mApplicationContext).artworkDao().getCurrentArtworkBlocking();
-        ContentResolver resolver = mApplicationContext.getContentResolver();
         if (artwork == null) {
             return false;
         }
-        Uri artworkUri = ContentUris.withAppendedId(MuzeiContract.Artwork.CONTENT_URI,
-                artwork.id);
         if (artwork.imageUri == null) {
             // There's nothing else we can do here so declare success
             return true;
         }
-        try (OutputStream out = resolver.openOutputStream(artworkUri);
-             InputStream in = out != null ? openUri(mApplicationContext, artwork.imageUri) : null) {
-            if (out == null) {
-                // We've already downloaded the file
-                return true;
-            }
-            // Only publish progress (i.e., say we've started loading the artwork)
-            // if we actually need to download the artwork
-            publishProgress();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) > 0) {
-                out.write(buffer, 0, bytesRead);
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(mApplicationContext, artwork.id);
+        if (artworkFile != null && artworkFile.exists() && artworkFile.length() > 0) {
+            // We've already downloaded the file
+            onArtworkDownloaded(artwork, false);
+            return true;
+        }
+        File stagingFile = ArtworkBlobStore.getStagingFile(mApplicationContext, artwork.id);
+        if (stagingFile == null) {
+            return false;
+        }
+        // Only publish progress (i.e., say we've started loading the artwork)
+        // if we actually need to download the artwork
+        publishProgress();
+        String contentHash;
+        try {
+            String scheme = artwork.imageUri.getScheme();
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                // Anything downloaded before a failure is kept so that the next attempt can resume
+                contentHash = new ArtworkDownloader(OkHttpClientFactory.getNewOkHttpsSafeClient())
+                        .download(new URL(artwork.imageUri.toString()), stagingFile, null);
+            } else {
+                contentHash = copy(openUri(mApplicationContext, artwork.imageUri), stagingFile);
             }
-            out.flush();
         } catch (IOException|IllegalArgumentException e) {
             Log.e(TAG, "Error downloading artwork", e);
             return false;
         }
+        if (!ArtworkBlobStore.commit(mApplicationContext, artwork.id, stagingFile, contentHash)) {
+            return false;
+        }
+        artwork.contentHash = contentHash;
+        onArtworkDownloaded(artwork, true);
         return true;
     }
 
+    /**
+     * Copies the given stream to the given file, returning the hex encoded SHA-256 hash of the
+     * copied bytes.
+     */
+    private static String copy(InputStream in, File file) throws IOException {
+        MessageDigest digest = ArtworkDownloader.newSha256Digest();
+        try (InputStream source = new DigestInputStream(in, digest);
+             BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+            sink.writeAll(Okio.source(source));
+        }
+        return ArtworkDownloader.toHex(digest.digest());
+    }
+
+    /**
+     * Reads the image header and pre-renders smaller copies once so that later consumers don't
+     * need to, skipping artwork that has already been processed.
+     *
+     * @param notify whether the file was just written, in which case listeners are notified
+     */
+    private void onArtworkDownloaded(Artwork artwork, boolean notify) {
+        if (artwork.hasMetadata()) {
+            if (notify) {
+                MuzeiProvider.onArtworkFileWritten(mApplicationContext);
+            }
+            return;
+        }
+        artwork = ImageMetadata.probeAndStore(mApplicationContext, artwork);
+        if (notify) {
+            MuzeiProvider.onArtworkFileWritten(mApplicationContext);
+        }
+        ArtworkDerivatives.generate(mApplicationContext, artwork);
+    }
+
     @Override
     protected void onPostExecute(Boolean success) {
         if (success) {
@@ -138,17 +182,6 @@ public class DownloadArtworkTask extends AsyncTask<Void, Void, Boolean> {
                 in = new FileInputStream(new File(uri.getPath()));
             }
 
-        } else if ("http".equals(scheme) || "https".equals(scheme)) {
-            OkHttpClient client = OkHttpClientFactory.getNewOkHttpsSafeClient();
-            Request request;
-            request = new Request.Builder().url(new URL(uri.toString())).build();
-
-            Response response = client.newCall(request).execute();
-            int responseCode = response.code();
-            if (!(responseCode >= 200 && responseCode < 300)) {
-                throw new IOException("HTTP error response " + responseCode);
-            }
-            in = response.body().byteStream();
         }
 
         if (in == null) {
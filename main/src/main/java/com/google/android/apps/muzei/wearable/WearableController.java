@@ -19,22 +19,18 @@ package com.google.android.apps.muzei.wearable;
 import android.arch.lifecycle.Lifecycle;
 import android.arch.lifecycle.LifecycleObserver;
 import android.arch.lifecycle.OnLifecycleEvent;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.support.media.ExifInterface;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
-import com.google.android.apps.muzei.render.ImageUtil;
 import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.util.ArtworkBitmapCache;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -45,8 +41,6 @@ import com.google.android.gms.wearable.Wearable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -98,63 +92,26 @@ public class WearableController implements LifecycleObserver {
             }
             return;
         }
-        ContentResolver contentResolver = mContext.getContentResolver();
+        Artwork artwork = MuzeiDatabase.getInstance(mContext).artworkDao().getCurrentArtworkBlocking();
         Bitmap image = null;
-        try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(contentResolver.openInputStream(
-                    MuzeiContract.Artwork.CONTENT_URI), null, options);
-            options.inJustDecodeBounds = false;
-            if (options.outWidth > options.outHeight) {
-                options.inSampleSize = ImageUtil.calculateSampleSize(options.outHeight, 320);
-            } else {
-                options.inSampleSize = ImageUtil.calculateSampleSize(options.outWidth, 320);
+        if (artwork != null) {
+            try {
+                // Rotate the image so that Wear always gets a right side up image
+                image = ArtworkBitmapCache.getInstance(mContext).get(artwork, 320, 320,
+                        ArtworkBitmapCache.TRANSFORM_EXIF_ROTATION);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Unable to read artwork to update Android Wear", e);
             }
-            image = BitmapFactory.decodeStream(contentResolver.openInputStream(
-                    MuzeiContract.Artwork.CONTENT_URI), null, options);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Unable to read artwork to update Android Wear", e);
         }
         if (image != null) {
-            int rotation = getRotation();
-            if (rotation != 0) {
-                // Rotate the image so that Wear always gets a right side up image
-                Matrix matrix = new Matrix();
-                matrix.postRotate(rotation);
-                image = Bitmap.createBitmap(image, 0, 0, image.getWidth(), image.getHeight(),
-                        matrix, true);
-            }
             final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
             image.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
             Asset asset = Asset.createFromBytes(byteStream.toByteArray());
             PutDataMapRequest dataMapRequest = PutDataMapRequest.create("/artwork");
-            Artwork artwork = MuzeiDatabase.getInstance(mContext).artworkDao().getCurrentArtworkBlocking();
             dataMapRequest.getDataMap().putDataMap("artwork", ArtworkTransfer.toDataMap(artwork));
             dataMapRequest.getDataMap().putAsset("image", asset);
             Wearable.DataApi.putDataItem(googleApiClient, dataMapRequest.asPutDataRequest().setUrgent()).await();
         }
         googleApiClient.disconnect();
     }
-
-    private int getRotation() {
-        ContentResolver contentResolver = mContext.getContentResolver();
-        int rotation = 0;
-        try (InputStream in = contentResolver.openInputStream(
-                MuzeiContract.Artwork.CONTENT_URI)) {
-            if (in == null) {
-                return 0;
-            }
-            ExifInterface exifInterface = new ExifInterface(in);
-            int orientation = exifInterface.getAttributeInt(
-                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90: rotation = 90; break;
-                case ExifInterface.ORIENTATION_ROTATE_180: rotation = 180; break;
-                case ExifInterface.ORIENTATION_ROTATE_270: rotation = 270; break;
-            }
-        } catch (IOException|NumberFormatException|StackOverflowError ignored) {
-        }
-        return rotation;
-    }
 }
@@ -19,13 +19,10 @@ package com.google.android.apps.muzei.widget;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
@@ -39,9 +36,10 @@ import android.view.View;
 import android.widget.RemoteViews;
 
 import com.google.android.apps.muzei.event.WallpaperActiveStateChangedEvent;
-import com.google.android.apps.muzei.render.ImageUtil;
+import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.ArtworkSource;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.util.ArtworkBitmapCache;
 
 import net.nurik.roman.muzei.R;
 
@@ -89,7 +87,6 @@ public class AppWidgetUpdateTask extends AsyncTask<ArtworkSource,Void,Boolean> {
         String contentDescription = !TextUtils.isEmpty(title)
                 ? title
                 : byline;
-        Uri imageUri = artworkSource.artwork.getContentUri();
         WallpaperActiveStateChangedEvent e = EventBus.getDefault().getStickyEvent(
                 WallpaperActiveStateChangedEvent.class);
         boolean supportsNextArtwork = e != null && e.isActive() && artworkSource.supportsNextArtwork;
@@ -106,7 +103,7 @@ public class AppWidgetUpdateTask extends AsyncTask<ArtworkSource,Void,Boolean> {
         if (mShowingPreview) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
                     appWidgetManager.isRequestPinAppWidgetSupported()) {
-                RemoteViews remoteViews = createRemoteViews(imageUri, contentDescription,
+                RemoteViews remoteViews = createRemoteViews(artworkSource.artwork, contentDescription,
                         launchPendingIntent, nextArtworkPendingIntent, supportsNextArtwork,
                         mContext.getResources().getDimensionPixelSize(R.dimen.widget_min_width),
                         mContext.getResources().getDimensionPixelSize(R.dimen.widget_min_height));
@@ -127,7 +124,7 @@ public class AppWidgetUpdateTask extends AsyncTask<ArtworkSource,Void,Boolean> {
             int widgetHeight = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                     extras.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT), displayMetrics);
             widgetHeight = Math.max(widgetHeight, minWidgetSize);
-            RemoteViews remoteViews = createRemoteViews(imageUri, contentDescription, launchPendingIntent,
+            RemoteViews remoteViews = createRemoteViews(artworkSource.artwork, contentDescription, launchPendingIntent,
                     nextArtworkPendingIntent, supportsNextArtwork, widgetWidth, widgetHeight);
             if (remoteViews == null) {
                 return false;
@@ -138,25 +135,16 @@ public class AppWidgetUpdateTask extends AsyncTask<ArtworkSource,Void,Boolean> {
     }
 
     @Nullable
-    private RemoteViews createRemoteViews(Uri imageUri, String contentDescription,
+    private RemoteViews createRemoteViews(Artwork artwork, String contentDescription,
                                           PendingIntent launchPendingIntent,
                                           PendingIntent nextArtworkPendingIntent, boolean supportsNextArtwork,
                                           int widgetWidth, int widgetHeight) {
-        ContentResolver contentResolver = mContext.getContentResolver();
         int smallWidgetHeight = mContext.getResources().getDimensionPixelSize(
                 R.dimen.widget_small_height_breakpoint);
         Bitmap image;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(contentResolver.openInputStream(imageUri), null, options);
-            int width = options.outWidth;
-            int height = options.outHeight;
-            options.inJustDecodeBounds = false;
-            options.inSampleSize = Math.min(ImageUtil.calculateSampleSize(width, widgetWidth),
-                    ImageUtil.calculateSampleSize(height, widgetHeight));
-            image = BitmapFactory.decodeStream(
-                    contentResolver.openInputStream(imageUri), null, options);
+            image = ArtworkBitmapCache.getInstance(mContext).get(artwork,
+                    widgetWidth, widgetHeight, ArtworkBitmapCache.TRANSFORM_NONE);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Could not find current artwork image", e);
             return null;
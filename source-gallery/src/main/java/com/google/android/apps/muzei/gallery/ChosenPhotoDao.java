@@ -34,6 +34,8 @@ import android.provider.DocumentsContract;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.google.android.apps.muzei.util.IoExecutor;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -56,13 +58,13 @@ public abstract class ChosenPhotoDao {
     public LiveData<Long> insert(Context context, final ChosenPhoto chosenPhoto) {
         final MutableLiveData<Long> asyncInsert = new MutableLiveData<>();
         if (persistUriAccess(context, chosenPhoto)) {
-            new Thread() {
+            IoExecutor.getInstance().execute(new Runnable() {
                 @Override
                 public void run() {
                     long id = insertInternal(chosenPhoto);
                     asyncInsert.postValue(id);
                 }
-            }.start();
+            });
         } else {
             asyncInsert.setValue(0L);
         }
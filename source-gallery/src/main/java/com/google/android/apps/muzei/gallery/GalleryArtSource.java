@@ -46,6 +46,7 @@ import android.util.Log;
 
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.MuzeiArtSource;
+import com.google.android.apps.muzei.util.IoExecutor;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -355,13 +356,13 @@ public class GalleryArtSource extends MuzeiArtSource implements LifecycleOwner {
         }
         if (!idsToDelete.isEmpty()) {
             final Context applicationContext = getApplicationContext();
-            new Thread() {
+            IoExecutor.getInstance().execute("delete_chosen_photos", new Runnable() {
                 @Override
                 public void run() {
                     GalleryDatabase.getInstance(applicationContext).chosenPhotoDao()
                             .delete(applicationContext, idsToDelete);
                 }
-            }.start();
+            });
         }
         setDescription(numImages > 0
                 ? getResources().getQuantityString(